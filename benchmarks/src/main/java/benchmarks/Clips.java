@@ -0,0 +1,50 @@
+package benchmarks;
+
+import org.bytedeco.javacpp.PointerPointer;
+
+import java.io.File;
+
+import static org.bytedeco.javacpp.avformat.*;
+
+/**
+ * Test clips encoded by EncodeAndMuxH264 when the module is built, see pom.xml
+ */
+final class Clips {
+    /** frames per clip, the clip.frames property of pom.xml */
+    static final int FRAMES = 60;
+
+    /** directory of the clips, the benchmarks are normally run from the module directory */
+    private static final String DIR = System.getProperty("clips.dir", "target");
+
+    private Clips() {}
+
+    /**
+     * @param resolution WxH
+     */
+    static String clip(String resolution) {
+        File file = new File(DIR, "clip_" + resolution + ".mkv");
+        if (!file.isFile()) {
+            throw new IllegalStateException(file + " not found, build the module with \"mvn package\" or set -Dclips.dir");
+        }
+        return file.getPath();
+    }
+
+    static int width(String resolution) {
+        return Integer.parseInt(resolution.split("x")[0]);
+    }
+
+    static int height(String resolution) {
+        return Integer.parseInt(resolution.split("x")[1]);
+    }
+
+    static AVFormatContext openInput(String file) {
+        AVFormatContext ctx = avformat_alloc_context();
+        if (avformat_open_input(ctx, file, null, null) < 0) {
+            throw new IllegalStateException("could not open " + file);
+        }
+        if (avformat_find_stream_info(ctx, (PointerPointer) null) < 0) {
+            throw new IllegalStateException("could not find stream info of " + file);
+        }
+        return ctx;
+    }
+}
@@ -0,0 +1,94 @@
+package benchmarks;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * H.264 decoding fps of the DemuxAndDecodeH264 flow: demux, avcodec_send_packet and
+ * avcodec_receive_frame until the decoder is drained, without conversion
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    /** not exported by the presets */
+    private static final int FF_THREAD_FRAME = 1;
+
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    /** decoder threads, 0 for one per core */
+    @Param({"1", "0"})
+    public int threads;
+
+    private String file;
+    private AVCodecContext codecContext;
+    private AVPacket pkt;
+    private AVFrame frame;
+
+    @Setup
+    public void setup() {
+        av_log_set_level(AV_LOG_ERROR);
+        file = Clips.clip(resolution);
+        AVFormatContext ctx = Clips.openInput(file);
+        AVCodec codec = avcodec_find_decoder(AV_CODEC_ID_H264);
+        codecContext = avcodec_alloc_context3(codec);
+        avcodec_parameters_to_context(codecContext, ctx.streams(0).codecpar());
+        codecContext.thread_count(threads);
+        codecContext.thread_type(FF_THREAD_FRAME);
+        if (avcodec_open2(codecContext, codec, (PointerPointer) null) < 0) {
+            throw new IllegalStateException("could not open decoder");
+        }
+        avformat_close_input(ctx);
+        pkt = av_packet_alloc();
+        frame = av_frame_alloc();
+    }
+
+    @TearDown
+    public void tearDown() {
+        av_frame_free(frame);
+        av_packet_free(pkt);
+        avcodec_free_context(codecContext);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Clips.FRAMES)
+    public int decodeClip() {
+        AVFormatContext ctx = Clips.openInput(file);
+        int frames = 0;
+        while (av_read_frame(ctx, pkt) >= 0) {
+            if (avcodec_send_packet(codecContext, pkt) < 0) {
+                throw new IllegalStateException("avcodec_send_packet failed");
+            }
+            av_packet_unref(pkt);
+            frames += receiveFrames();
+        }
+        avcodec_send_packet(codecContext, null);
+        frames += receiveFrames();
+        avformat_close_input(ctx);
+        // the drained decoder is reused by the next invocation
+        avcodec_flush_buffers(codecContext);
+        if (frames != Clips.FRAMES) {
+            throw new IllegalStateException("decoded " + frames + " of " + Clips.FRAMES + " frames");
+        }
+        return frames;
+    }
+
+    private int receiveFrames() {
+        int frames = 0;
+        while (avcodec_receive_frame(codecContext, frame) >= 0) {
+            av_frame_unref(frame);
+            ++frames;
+        }
+        return frames;
+    }
+}
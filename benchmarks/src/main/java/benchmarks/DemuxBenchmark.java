@@ -0,0 +1,51 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * av_read_frame throughput in packets per second, the input is opened once per pass over the clip
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DemuxBenchmark {
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    private String file;
+    private AVPacket pkt;
+
+    @Setup
+    public void setup() {
+        av_log_set_level(AV_LOG_ERROR);
+        file = Clips.clip(resolution);
+        pkt = av_packet_alloc();
+    }
+
+    @TearDown
+    public void tearDown() {
+        av_packet_free(pkt);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Clips.FRAMES)
+    public long readFrames() {
+        AVFormatContext ctx = Clips.openInput(file);
+        long bytes = 0;
+        while (av_read_frame(ctx, pkt) >= 0) {
+            bytes += pkt.size();
+            av_packet_unref(pkt);
+        }
+        avformat_close_input(ctx);
+        return bytes;
+    }
+}
@@ -0,0 +1,130 @@
+package benchmarks;
+
+import org.bytedeco.javacpp.PointerPointer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * libx264 encoding fps with the settings of EncodeAndMuxH264. The frames of the clip are decoded
+ * once; every invocation opens an encoder, encodes them all and drains it, without muxing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class EncodeBenchmark {
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"veryfast", "medium"})
+    public String preset;
+
+    private AVFrame[] frames;
+    private AVPacket pkt;
+
+    @Setup
+    public void setup() {
+        av_log_set_level(AV_LOG_ERROR);
+        frames = decodeClip(Clips.clip(resolution));
+        pkt = av_packet_alloc();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (AVFrame frame : frames) {
+            av_frame_free(frame);
+        }
+        av_packet_free(pkt);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Clips.FRAMES)
+    public long encodeClip() {
+        AVCodecContext cc = openEncoder();
+        long bytes = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i].pts(i);
+            bytes += encode(cc, frames[i]);
+        }
+        bytes += encode(cc, null);
+        avcodec_free_context(cc);
+        return bytes;
+    }
+
+    private AVCodecContext openEncoder() {
+        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_H264);
+        AVCodecContext cc = avcodec_alloc_context3(codec);
+        cc.bit_rate(400000);
+        cc.width(frames[0].width());
+        cc.height(frames[0].height());
+        cc.time_base(av_make_q(1, 30));
+        cc.gop_size(60);
+        cc.max_b_frames(12);
+        cc.pix_fmt(AV_PIX_FMT_YUV420P);
+        av_opt_set(cc.priv_data(), "profile", "baseline", 0);
+        av_opt_set(cc.priv_data(), "preset", preset, 0);
+        if (avcodec_open2(cc, codec, (PointerPointer) null) < 0) {
+            throw new IllegalStateException("could not open encoder");
+        }
+        return cc;
+    }
+
+    private long encode(AVCodecContext cc, AVFrame frame) {
+        if (avcodec_send_frame(cc, frame) < 0) {
+            throw new IllegalStateException("avcodec_send_frame failed");
+        }
+        long bytes = 0;
+        while (avcodec_receive_packet(cc, pkt) >= 0) {
+            bytes += pkt.size();
+            av_packet_unref(pkt);
+        }
+        return bytes;
+    }
+
+    private static AVFrame[] decodeClip(String file) {
+        AVFormatContext ctx = Clips.openInput(file);
+        AVCodec codec = avcodec_find_decoder(AV_CODEC_ID_H264);
+        AVCodecContext dc = avcodec_alloc_context3(codec);
+        avcodec_parameters_to_context(dc, ctx.streams(0).codecpar());
+        if (avcodec_open2(dc, codec, (PointerPointer) null) < 0) {
+            throw new IllegalStateException("could not open decoder");
+        }
+        AVFrame[] frames = new AVFrame[Clips.FRAMES];
+        AVPacket p = av_packet_alloc();
+        int n = 0;
+        boolean draining = false;
+        while (n < frames.length) {
+            if (!draining) {
+                if (av_read_frame(ctx, p) >= 0) {
+                    avcodec_send_packet(dc, p);
+                    av_packet_unref(p);
+                } else {
+                    avcodec_send_packet(dc, null);
+                    draining = true;
+                }
+            }
+            AVFrame frame = av_frame_alloc();
+            while (n < frames.length && avcodec_receive_frame(dc, frame) >= 0) {
+                // decoded frames are not keyframe or type hints for the encoder
+                frame.pict_type(AV_PICTURE_TYPE_NONE);
+                frames[n++] = frame;
+                frame = av_frame_alloc();
+            }
+            av_frame_free(frame);
+            if (draining && n < frames.length) {
+                throw new IllegalStateException("decoded " + n + " of " + frames.length + " frames");
+            }
+        }
+        av_packet_free(p);
+        avcodec_free_context(dc);
+        avformat_close_input(ctx);
+        return frames;
+    }
+}
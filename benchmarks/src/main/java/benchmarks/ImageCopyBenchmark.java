@@ -0,0 +1,81 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import util.FrameImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_BGR24;
+
+/**
+ * Copies between a native BGR24 frame and a heap {@code TYPE_3BYTE_BGR} image, row by row through
+ * a direct buffer, and through {@link FrameImage#toImage()} and {@link FrameImage#toFrame()}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageCopyBenchmark {
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private FrameImage frameImage;
+    private ByteBuffer nativePixels;
+    private int linesize;
+    private BufferedImage heapImage;
+    private byte[] heapPixels;
+
+    @Setup
+    public void setup() {
+        width = Clips.width(resolution);
+        height = Clips.height(resolution);
+        frameImage = FrameImage.allocate(width, height, AV_PIX_FMT_BGR24);
+        linesize = frameImage.frame().linesize(0);
+        nativePixels = frameImage.frame().data(0).capacity((long) linesize * height).asByteBuffer();
+        heapImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        heapPixels = ((DataBufferByte) heapImage.getRaster().getDataBuffer()).getData();
+    }
+
+    @TearDown
+    public void tearDown() {
+        frameImage.free();
+    }
+
+    @Benchmark
+    public byte[] nativeToHeapRows() {
+        int rowBytes = 3 * width;
+        for (int row = 0; row < height; row++) {
+            nativePixels.position(row * linesize);
+            nativePixels.get(heapPixels, row * rowBytes, rowBytes);
+        }
+        return heapPixels;
+    }
+
+    @Benchmark
+    public ByteBuffer heapToNativeRows() {
+        int rowBytes = 3 * width;
+        for (int row = 0; row < height; row++) {
+            nativePixels.position(row * linesize);
+            nativePixels.put(heapPixels, row * rowBytes, rowBytes);
+        }
+        return nativePixels;
+    }
+
+    @Benchmark
+    public BufferedImage frameToImage() {
+        return frameImage.toImage();
+    }
+
+    @Benchmark
+    public FrameImage imageToFrame() {
+        frameImage.toFrame();
+        return frameImage;
+    }
+}
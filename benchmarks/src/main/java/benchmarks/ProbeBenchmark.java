@@ -0,0 +1,53 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import util.Probe;
+import util.Probes;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a {@link Probe} around an empty stage, with probes disabled and enabled, compared with
+ * the stage alone. Dividing by the stage times printed by the samples gives the probe overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeBenchmark {
+    @Param({"false", "true"})
+    public boolean enabled;
+
+    private Probe probe;
+
+    @Setup
+    public void setup() {
+        if (enabled) {
+            Probes.enable();
+        }
+        probe = Probes.get("benchmark");
+    }
+
+    @Benchmark
+    public void stage() {
+        Blackhole.consumeCPU(10);
+    }
+
+    @Benchmark
+    public void probedStage() {
+        long t0 = probe.begin();
+        Blackhole.consumeCPU(10);
+        probe.end(t0);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void probedStageContended() {
+        long t0 = probe.begin();
+        Blackhole.consumeCPU(10);
+        probe.end(t0);
+    }
+}
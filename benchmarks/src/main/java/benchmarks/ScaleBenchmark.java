@@ -0,0 +1,131 @@
+package benchmarks;
+
+import org.bytedeco.javacpp.avutil.AVFrame;
+import org.openjdk.jmh.annotations.*;
+import util.SliceScaler;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swscale.SWS_BICUBIC;
+
+/**
+ * sws_scale conversions of the pixel format pairs used by the samples, in one call or in bands
+ * converted in parallel by {@link SliceScaler}. Setup checks that the banded output is the output
+ * of a single call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScaleBenchmark {
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    /** GrabScreen, DemuxAndDecodeH264 and EncodeAndMuxH264 conversions */
+    @Param({"bgr0>bgr24", "yuv420p>bgr24", "bgr24>yuv420p"})
+    public String conversion;
+
+    /** number of bands, 0 for one per core */
+    @Param({"1", "0"})
+    public int slices;
+
+    private AVFrame src;
+    private AVFrame dst;
+    private SliceScaler scaler;
+
+    @Setup
+    public void setup() {
+        int width = Clips.width(resolution);
+        int height = Clips.height(resolution);
+        String[] formats = conversion.split(">");
+        int srcFormat = av_get_pix_fmt(formats[0]);
+        int dstFormat = av_get_pix_fmt(formats[1]);
+        src = allocFrame(width, height, srcFormat);
+        dst = allocFrame(width, height, dstFormat);
+        fillRandom(src);
+        scaler = new SliceScaler(width, height, srcFormat, width, height, dstFormat, SWS_BICUBIC, slices);
+        checkSingleCall(width, height, srcFormat, dstFormat);
+    }
+
+    /**
+     * Fails when the bands of the scaler give another picture than one sws_scale call
+     */
+    private void checkSingleCall(int width, int height, int srcFormat, int dstFormat) {
+        AVFrame expected = allocFrame(width, height, dstFormat);
+        try (SliceScaler single = new SliceScaler(width, height, srcFormat, width, height, dstFormat, SWS_BICUBIC, 1)) {
+            single.scale(src, expected);
+            scaler.scale(src, dst);
+            long differences = differentBytes(expected, dst);
+            if (differences != 0) {
+                throw new IllegalStateException(String.format("%s in %d bands differs from one call in %d bytes",
+                        conversion, scaler.slices(), differences));
+            }
+        } finally {
+            av_frame_free(expected);
+        }
+    }
+
+    /**
+     * Number of different bytes of the visible rows of two pictures of the same size and format
+     */
+    static long differentBytes(AVFrame a, AVFrame b) {
+        long differences = 0;
+        int format = a.format();
+        int chromaShift = av_pix_fmt_desc_get(format).log2_chroma_h();
+        for (int p = 0; p < av_pix_fmt_count_planes(format); p++) {
+            int rows = p == 0 ? a.height() : -((-a.height()) >> chromaShift);
+            int rowBytes = av_image_get_linesize(format, a.width(), p);
+            ByteBuffer planeA = a.data(p).capacity((long) a.linesize(p) * rows).asByteBuffer();
+            ByteBuffer planeB = b.data(p).capacity((long) b.linesize(p) * rows).asByteBuffer();
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < rowBytes; x++) {
+                    if (planeA.get(y * a.linesize(p) + x) != planeB.get(y * b.linesize(p) + x)) {
+                        differences++;
+                    }
+                }
+            }
+        }
+        return differences;
+    }
+
+    @TearDown
+    public void tearDown() {
+        scaler.close();
+        av_frame_free(src);
+        av_frame_free(dst);
+    }
+
+    @Benchmark
+    public AVFrame scale() {
+        scaler.scale(src, dst);
+        return dst;
+    }
+
+    static AVFrame allocFrame(int width, int height, int format) {
+        AVFrame frame = av_frame_alloc();
+        frame.format(format);
+        frame.width(width);
+        frame.height(height);
+        if (av_frame_get_buffer(frame, 32) < 0) {
+            throw new IllegalStateException("Could not allocate the video frame data");
+        }
+        return frame;
+    }
+
+    private static void fillRandom(AVFrame frame) {
+        Random random = new Random(0);
+        int chromaShift = av_pix_fmt_desc_get(frame.format()).log2_chroma_h();
+        for (int p = 0; p < av_pix_fmt_count_planes(frame.format()); p++) {
+            int rows = p == 0 ? frame.height() : -((-frame.height()) >> chromaShift);
+            ByteBuffer plane = frame.data(p).capacity((long) frame.linesize(p) * rows).asByteBuffer();
+            byte[] bytes = new byte[plane.capacity()];
+            random.nextBytes(bytes);
+            plane.put(bytes);
+        }
+    }
+}
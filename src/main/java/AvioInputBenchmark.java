@@ -0,0 +1,127 @@
+import org.apache.commons.cli.*;
+import org.bytedeco.javacpp.*;
+import util.ChannelInput;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+
+/**
+ * Compares demuxing throughput of the file path route of avformat_open_input with
+ * {@link ChannelInput} over a memory-mapped file, a file loaded into memory and a file channel
+ */
+public final class AvioInputBenchmark {
+    private static final String DEFAULT_ROUTES = "file,mmap,memory,channel";
+    private static final String DEFAULT_ITERATIONS = "10";
+
+    /** value of AVFMT_FLAG_CUSTOM_IO, not exported by the presets */
+    private static final int AVFMT_FLAG_CUSTOM_IO = 0x0080;
+
+    private int iterations;
+
+    private AvioInputBenchmark() {}
+
+    public static void main(String... argv) throws IOException, ParseException {
+        Options options = new Options();
+        options.addOption("help", false, "show help and exit");
+        options.addOption("routes", true, "comma separated input routes: file, mmap, memory, channel");
+        options.addOption("iterations", true, "demuxing passes per route");
+        CommandLine cmd = new DefaultParser().parse(options, argv);
+        if (cmd.hasOption("help") || cmd.getArgs().length == 0) {
+            HelpFormatter helpFormatter = new HelpFormatter();
+            helpFormatter.printHelp("AvioInputBenchmark [options] input.mkv", options);
+        } else {
+            System.out.println("options:");
+            AvioInputBenchmark instance = new AvioInputBenchmark();
+            String routes = getOption(cmd, "routes", DEFAULT_ROUTES);
+            instance.iterations = Integer.parseInt(getOption(cmd, "iterations", DEFAULT_ITERATIONS));
+            File media = new File(cmd.getArgs()[0]);
+            for (String route : routes.split(",")) {
+                instance.run(media, route);
+            }
+        }
+    }
+
+    private static String getOption(CommandLine cmd, String key, String defaultValue) {
+        String v = cmd.getOptionValue(key, defaultValue);
+        System.out.println("\t" + key + " = \"" + v + "\"");
+        return v;
+    }
+
+    private void run(File media, String route) throws IOException {
+        // "memory" loads the data once, like a service holding the upload in memory
+        ByteBuffer data = null;
+        if ("memory".equals(route)) {
+            data = ChannelInput.load(media);
+        }
+
+        demux(media, route, data);
+        long packets = 0;
+        long bytes = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long[] counts = demux(media, route, data);
+            packets += counts[0];
+            bytes += counts[1];
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        System.out.println(String.format("%s: %.1f MB/s, %.0f packets/s, %.3f ms per pass",
+                route, bytes / seconds / (1 << 20), packets / seconds, seconds * 1000 / iterations));
+    }
+
+    /**
+     * @return number of packets and their total size
+     */
+    private static long[] demux(File media, String route, ByteBuffer data) throws IOException {
+        FileChannel channel = null;
+        ChannelInput input = null;
+        AVFormatContext ctx;
+        int r;
+        if ("file".equals(route)) {
+            ctx = new AVFormatContext(null);
+            r = avformat_open_input(ctx, media.getPath(), null, null);
+        } else {
+            if ("channel".equals(route)) {
+                channel = FileChannel.open(media.toPath(), StandardOpenOption.READ);
+                input = ChannelInput.of(channel);
+            } else
+            if ("mmap".equals(route)) {
+                channel = FileChannel.open(media.toPath(), StandardOpenOption.READ);
+                input = ChannelInput.mapped(channel);
+            } else {
+                input = ChannelInput.of(data);
+            }
+            ctx = avformat_alloc_context();
+            ctx.pb(input.avio());
+            ctx.flags(ctx.flags() | AVFMT_FLAG_CUSTOM_IO);
+            r = avformat_open_input(ctx, (String) null, null, null);
+        }
+        if (r < 0) {
+            throw new IOException("avformat_open_input error: " + r);
+        }
+
+        long packets = 0;
+        long bytes = 0;
+        AVPacket pkt = av_packet_alloc();
+        while (av_read_frame(ctx, pkt) >= 0) {
+            ++packets;
+            bytes += pkt.size();
+            av_packet_unref(pkt);
+        }
+        av_packet_free(pkt);
+        avformat_close_input(ctx);
+
+        if (input != null) {
+            input.close();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        return new long[] {packets, bytes};
+    }
+}
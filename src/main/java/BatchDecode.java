@@ -0,0 +1,380 @@
+import org.apache.commons.cli.*;
+import org.bytedeco.javacpp.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Decodes directories or manifests of MKV files with {@link DemuxAndDecodeH264} jobs running side
+ * by side in one JVM.
+ *
+ * Jobs run on a work-stealing pool. A job is started only while the native memory estimated for
+ * the running jobs, from the resolution found by {@code avformat_find_stream_info}, stays within the
+ * budget. Finished and failed jobs are appended to a journal, so a batch that was killed resumes
+ * with the files it had not finished.
+ */
+public final class BatchDecode {
+    private static final String DEFAULT_JOBS = "0";
+    private static final String DEFAULT_THREADS = "1";
+    private static final String DEFAULT_MEMORY_MB = "2048";
+    private static final String DEFAULT_OUTPUT = "batch";
+    private static final String DEFAULT_THUMBNAIL_INTERVAL = "0";
+    private static final String DEFAULT_THUMBNAIL_SIZE = "160x90";
+
+    /** reference frames an h264 decoder may keep */
+    private static final int MAX_REFERENCE_FRAMES = 16;
+
+    /** demuxer, decoder contexts and io buffers of a job */
+    private static final long JOB_OVERHEAD_BYTES = 4L << 20;
+
+    /** number of concurrent jobs, 0 means cores divided by decoder threads */
+    private int jobs;
+
+    /** number of decoding threads of every job */
+    private int threads;
+
+    /** native memory of the running jobs, as estimated by {@link #estimateBytes} */
+    private long budget;
+
+    /** png files of every input go to a directory of the same relative path in here */
+    private File output;
+
+    /** journal of finished and failed inputs */
+    private File journal;
+    private FileOutputStream journalStream;
+    private Writer journalWriter;
+
+    /** seconds between keyframe thumbnails, 0 to decode every frame */
+    private double thumbnailInterval;
+    private int thumbnailWidth;
+    private int thumbnailHeight;
+
+    /** jobs not started yet, most expensive first */
+    private final List<Job> pending = new ArrayList<>();
+
+    /** estimated native memory of the running jobs */
+    private long reserved;
+    private long peakReserved;
+    private int running;
+    private int peakRunning;
+
+    private int finished;
+    private int failed;
+    private long frames;
+    private long jobNanos;
+
+    private BatchDecode() {}
+
+    public static void main(String... argv) throws IOException, ParseException {
+        Options options = new Options();
+        options.addOption("help", false, "show help and exit");
+        options.addOption("jobs", true, "number of files decoded at once, 0 for cores divided by decoder threads");
+        options.addOption("threads", true, "number of decoding threads of every file");
+        options.addOption("memory_mb", true, "estimated native memory of the files decoded at once in megabytes");
+        options.addOption("output", true, "output directory");
+        options.addOption("journal", true, "journal of finished files, read to resume an interrupted batch");
+        options.addOption("thumbnail_interval", true, "seconds between keyframe thumbnails, 0 to decode every frame");
+        options.addOption("thumbnail_size", true, "thumbnail size WxH");
+        CommandLine cmd = new DefaultParser().parse(options, argv);
+        if (cmd.hasOption("help") || cmd.getArgs().length == 0) {
+            HelpFormatter helpFormatter = new HelpFormatter();
+            helpFormatter.printHelp("BatchDecode [options] directory|manifest.txt...", options);
+        } else {
+            System.out.println("options:");
+            BatchDecode instance = new BatchDecode();
+            instance.jobs = Integer.parseInt(getOption(cmd, "jobs", DEFAULT_JOBS));
+            instance.threads = Math.max(1, Integer.parseInt(getOption(cmd, "threads", DEFAULT_THREADS)));
+            instance.budget = Long.parseLong(getOption(cmd, "memory_mb", DEFAULT_MEMORY_MB)) << 20;
+            instance.output = new File(getOption(cmd, "output", DEFAULT_OUTPUT));
+            instance.journal = new File(getOption(cmd, "journal", new File(instance.output, "batch.journal").getPath()));
+            instance.thumbnailInterval =
+                Double.parseDouble(getOption(cmd, "thumbnail_interval", DEFAULT_THUMBNAIL_INTERVAL));
+            String[] thumbnailSize = getOption(cmd, "thumbnail_size", DEFAULT_THUMBNAIL_SIZE).split("x");
+            instance.thumbnailWidth = Integer.parseInt(thumbnailSize[0]);
+            instance.thumbnailHeight = Integer.parseInt(thumbnailSize[1]);
+            if (!instance.start(cmd.getArgs())) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static String getOption(CommandLine cmd, String key, String defaultValue) {
+        String v = cmd.getOptionValue(key, defaultValue);
+        System.out.println("\t" + key + " = \"" + v + "\"");
+        return v;
+    }
+
+    /**
+     * @return true if no file failed
+     */
+    private boolean start(String[] inputs) throws IOException {
+        av_log_set_level(AV_LOG_ERROR);
+        List<Job> all = listInputs(inputs);
+        Set<String> done = readJournal();
+        List<Job> todo = all.stream().filter(job -> !done.contains(job.key())).collect(Collectors.toList());
+        int maxJobs = jobs > 0 ? jobs : Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+        System.out.println(String.format("%d files, %d finished by an earlier run, up to %d at once with %d decoder threads each, %d MB budget",
+                all.size(), all.size() - todo.size(), maxJobs, threads, budget >> 20));
+
+        output.mkdirs();
+        ForkJoinPool pool = new ForkJoinPool(maxJobs);
+        long startNanos = System.nanoTime();
+        journalStream = new FileOutputStream(journal, true);
+        journalWriter = new OutputStreamWriter(journalStream, StandardCharsets.UTF_8);
+        try {
+            // probing is mostly waiting for the disk, let the pool spread it over its workers
+            pool.submit(() -> todo.parallelStream().forEach(this::probe)).get();
+            for (Job job : todo) {
+                if (job.error != null) {
+                    report(job);
+                }
+            }
+            todo.removeIf(job -> job.error != null);
+            todo.sort(Comparator.comparingDouble(Job::cost).reversed());
+            pending.addAll(todo);
+            schedule(pool, maxJobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("probing failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            journalWriter.close();
+        }
+        printStats(System.nanoTime() - startNanos);
+        return failed == 0;
+    }
+
+    /**
+     * Starts the most expensive pending job that fits into the budget whenever a job slot is free,
+     * a job larger than the whole budget runs alone
+     */
+    private synchronized void schedule(ForkJoinPool pool, int maxJobs) throws InterruptedException {
+        while (!pending.isEmpty()) {
+            Job job = running < maxJobs ? nextFitting() : null;
+            if (job == null) {
+                wait();
+                continue;
+            }
+            pending.remove(job);
+            reserved += job.estimatedBytes;
+            peakReserved = Math.max(peakReserved, reserved);
+            peakRunning = Math.max(peakRunning, ++running);
+            pool.execute(() -> run(job));
+        }
+        while (running > 0) {
+            wait();
+        }
+    }
+
+    private Job nextFitting() {
+        for (Job job : pending) {
+            if (running == 0 || reserved + job.estimatedBytes <= budget) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void run(Job job) {
+        long t0 = System.nanoTime();
+        try {
+            job.output.mkdirs();
+            DemuxAndDecodeH264 decoder = DemuxAndDecodeH264.batchJob(job.output, threads, thumbnailInterval,
+                    thumbnailWidth, thumbnailHeight);
+            decoder.start(job.file.getPath());
+            job.frames = decoder.frames();
+        } catch (Exception e) {
+            job.error = String.valueOf(e.getMessage());
+        } catch (OutOfMemoryError e) {
+            job.error = "out of memory";
+        } catch (Throwable e) {
+            job.error = String.valueOf(e);
+            throw e;
+        } finally {
+            job.nanos = System.nanoTime() - t0;
+            synchronized (this) {
+                reserved -= job.estimatedBytes;
+                --running;
+                try {
+                    report(job);
+                } catch (IOException e) {
+                    System.err.println("could not write " + journal + ": " + e.getMessage());
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Prints the outcome of the job and appends it to the journal, which is synced so that a finished
+     * job is not decoded again after a crash
+     */
+    private synchronized void report(Job job) throws IOException {
+        int n = ++finished;
+        jobNanos += job.nanos;
+        if (job.error == null) {
+            frames += job.frames;
+            double seconds = job.nanos / 1e9;
+            System.out.println(String.format("[%d] %s: %dx%d, %d frames in %.3f s, %.1f fps, %d MB estimated, %d running",
+                    n, job.relativePath, job.width, job.height, job.frames, seconds, job.frames / seconds,
+                    job.estimatedBytes >> 20, running));
+            journalWriter.write("done\t" + job.key() + "\t" + job.frames + "\t" + job.nanos + "\n");
+        } else {
+            ++failed;
+            System.out.println(String.format("[%d] %s failed: %s", n, job.relativePath, job.error));
+            journalWriter.write("failed\t" + job.key() + "\t" + job.error.replaceAll("\\s+", " ") + "\n");
+        }
+        journalWriter.flush();
+        journalStream.getFD().sync();
+    }
+
+    private void printStats(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%d files decoded, %d failed, %d frames in %.3f s: %.1f fps, %.2f files per second",
+                finished - failed, failed, frames, seconds, frames / seconds, (finished - failed) / seconds));
+        System.out.println(String.format("%.3f s in jobs: %.1f jobs running on average, at most %d",
+                jobNanos / 1e9, jobNanos / (double) elapsedNanos, peakRunning));
+        System.out.println(String.format("estimated native memory: at most %d MB of %d MB",
+                peakReserved >> 20, budget >> 20));
+    }
+
+    /**
+     * Finds the video stream and estimates the job
+     */
+    private void probe(Job job) {
+        AVFormatContext ctx = new AVFormatContext(null);
+        try {
+            if (avformat_open_input(ctx, job.file.getPath(), null, null) < 0) {
+                job.error = "could not open";
+                return;
+            }
+            if (avformat_find_stream_info(ctx, (PointerPointer) null) < 0) {
+                job.error = "could not find stream info";
+                return;
+            }
+            int stream = av_find_best_stream(ctx, AVMEDIA_TYPE_VIDEO, -1, -1, (PointerPointer) null, 0);
+            if (stream < 0) {
+                job.error = "no video stream";
+                return;
+            }
+            AVCodecParameters par = ctx.streams(stream).codecpar();
+            job.width = par.width();
+            job.height = par.height();
+            job.durationSeconds = ctx.duration() > 0 ? ctx.duration() / (double) AV_TIME_BASE : 1;
+            job.estimatedBytes = estimateBytes(job.width, job.height);
+        } finally {
+            if (!ctx.isNull()) {
+                avformat_close_input(ctx);
+            }
+        }
+    }
+
+    /**
+     * Native memory of a job: the decoder's reference frames and the frames in flight between its
+     * threads, and the two RGB images of its png writer. Batch jobs neither seek nor split the file
+     * into segments, so they build no packet index and hold no pooled frames.
+     */
+    private long estimateBytes(int width, int height) {
+        long yuv = (long) width * height * 3 / 2;
+        long rgb = thumbnailInterval > 0 ? (long) thumbnailWidth * thumbnailHeight * 3 : (long) width * height * 3;
+        return (MAX_REFERENCE_FRAMES + threads + 1) * yuv + 2 * rgb + JOB_OVERHEAD_BYTES;
+    }
+
+    /**
+     * @return paths of the finished files, a crash may leave an incomplete last line which is ignored
+     */
+    private Set<String> readJournal() throws IOException {
+        Set<String> done = new HashSet<>();
+        if (!journal.exists()) {
+            return done;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4 && fields[0].equals("done")) {
+                    done.add(fields[1]);
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * MKV files under the directories, or files listed one per line in the manifests
+     */
+    private List<Job> listInputs(String[] inputs) throws IOException {
+        List<Job> all = new ArrayList<>();
+        for (String input : inputs) {
+            Path root = new File(input).toPath();
+            if (Files.isDirectory(root)) {
+                try (Stream<Path> files = Files.walk(root)) {
+                    files.filter(p -> Files.isRegularFile(p) && p.toString().toLowerCase(Locale.ROOT).endsWith(".mkv"))
+                            .sorted()
+                            .forEach(p -> all.add(newJob(p.toFile(), root.relativize(p).toString())));
+                }
+            } else {
+                Path base = root.toAbsolutePath().getParent();
+                for (String line : Files.readAllLines(root, StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    Path p = base.resolve(line).normalize();
+                    String relativePath = p.startsWith(base) ? base.relativize(p).toString() : p.getRoot().relativize(p).toString();
+                    all.add(newJob(p.toFile(), relativePath));
+                }
+            }
+        }
+        return all;
+    }
+
+    private Job newJob(File file, String relativePath) {
+        Job job = new Job();
+        job.file = file.toPath().toAbsolutePath().normalize().toFile();
+        job.relativePath = relativePath;
+        String name = relativePath.toLowerCase(Locale.ROOT).endsWith(".mkv") ?
+                relativePath.substring(0, relativePath.length() - 4) : relativePath;
+        job.output = new File(output, name);
+        return job;
+    }
+
+    private static final class Job {
+        private File file;
+        private String relativePath;
+        private File output;
+        private int width;
+        private int height;
+        private double durationSeconds;
+        private long estimatedBytes;
+
+        /** first error, null if the job succeeded */
+        private String error;
+        private int frames;
+        private long nanos;
+
+        private String key() {
+            return file.getPath();
+        }
+
+        /**
+         * @return pixels to decode, to start the longest jobs first so the batch does not end waiting for one of them
+         */
+        private double cost() {
+            return durationSeconds * width * height;
+        }
+    }
+}
@@ -1,12 +1,29 @@
+import org.apache.commons.cli.*;
 import org.bytedeco.javacpp.*;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import util.AsyncImageWriter;
+import util.ChannelInput;
+import util.FrameCache;
+import util.FrameImage;
+import util.FramePool;
+import util.LumaAnalyzer;
+import util.NativeMemory;
+import util.PacketIndex;
+import util.Probe;
+import util.Probes;
+import util.SliceScaler;
+import util.YuvWriter;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avformat.*;
@@ -17,6 +34,43 @@ import static org.bytedeco.javacpp.presets.avutil.AVERROR_EAGAIN;
 * Read and decode h264 video from matroska (MKV) container
 */
 public final class DemuxAndDecodeH264 {
+    private static final String DEFAULT_THREADS = "0";
+    private static final String DEFAULT_THREAD_TYPE = "frame";
+    private static final String DEFAULT_WRITERS = "0";
+    private static final String DEFAULT_BUFFERS = "0";
+    private static final String DEFAULT_THUMBNAIL_INTERVAL = "0";
+    private static final String DEFAULT_THUMBNAIL_SIZE = "160x90";
+    private static final String DEFAULT_SEGMENTS = "0";
+    private static final String DEFAULT_SEGMENT_BUFFER_MB = "256";
+    private static final String DEFAULT_SEEK_BENCH = "0";
+    private static final String DEFAULT_SEEK_WINDOW = "0";
+    private static final String DEFAULT_CACHE_MB = "0";
+    private static final String DEFAULT_SWS_SLICES = "0";
+    private static final String DEFAULT_INPUT = "file";
+    private static final String DEFAULT_YUV_IO = "channel";
+    private static final String DEFAULT_ANALYZE_SLICES = "0";
+
+    /** size of the staging chunk or mapped window of the yuv output */
+    private static final int YUV_CHUNK_BYTES = 8 << 20;
+
+    /** stages of the decoding pipeline, see {@link Probes} */
+    private static final Probe DEMUX = Probes.get("demux");
+    private static final Probe DECODE_SEND = Probes.get("decode.send");
+    private static final Probe DECODE_RECEIVE = Probes.get("decode.receive");
+    private static final Probe CONVERT = Probes.get("convert");
+    private static final Probe YUV_WRITE = Probes.get("yuv.write");
+    private static final Probe ANALYZE = Probes.get("analyze");
+
+    /** marks the end of decoded frames of a segment */
+    private static final AVFrame END_OF_SEGMENT = new AVFrame((Pointer) null);
+
+    /** values of FF_THREAD_FRAME and FF_THREAD_SLICE, not exported by the presets */
+    private static final int FF_THREAD_FRAME = 1;
+    private static final int FF_THREAD_SLICE = 2;
+
+    /** value of AVFMT_FLAG_CUSTOM_IO, not exported by the presets */
+    private static final int AVFMT_FLAG_CUSTOM_IO = 0x0080;
+
     /** Matroska format context */
     private AVFormatContext avfmtCtx;
 
@@ -35,14 +89,20 @@ public final class DemuxAndDecodeH264 {
     /** yuv420 frame */
     private AVFrame yuv420Frame;
 
-    /** RGB frame */
-    private AVFrame rgbFrame;
+    /** pool of RGB frames shared with java images, writes them to png files */
+    private AsyncImageWriter imageWriter;
 
-    /** java RGB frame */
-    private BufferedImage img;
+    /** number of png writer threads, 0 means one per available core */
+    private int writers;
+
+    /** number of pooled RGB frames, 0 means two per writer */
+    private int buffers;
 
     /** yuv420 to rgb converter */
-    private swscale.SwsContext sws_ctx;
+    private SliceScaler scaler;
+
+    /** number of bands converted in parallel, 0 means one per available core */
+    private int swsSlices;
 
     /** number of frame */
     private int nframe;
@@ -50,39 +110,680 @@ public final class DemuxAndDecodeH264 {
     /* 1/1000 of second */
     private AVRational tb1000;
 
+    /** number of decoding threads, 0 means one per available core */
+    private int threads;
+
+    /** "frame" or "slice" threading */
+    private String threadType;
+
+    /** wall clock time of avcodec_send_packet and avcodec_receive_frame calls */
+    private long decodeNanos;
+
+    /** capacity of the send time ring, more than the frames a decoder holds back */
+    private static final int SEND_RING = 256;
+
+    /**
+     * Send time and dts of the last packets sent to the decoder, in a ring indexed by packet sequence
+     * number. A frame finds its packet by the {@code pkt_dts} the decoder copies from it, searching
+     * back from the last packet sent.
+     */
+    private final long[] sendNanos = new long[SEND_RING];
+    private final long[] sendDts = new long[SEND_RING];
+    private long packetSequence;
+    /** last packet dropped by a decoder flush, earlier ring entries never become frames */
+    private long flushedSequence;
+
+    /** sum and maximum of packet-to-frame latencies */
+    private long latencyNanos;
+    private long maxLatencyNanos;
+    private int latencySamples;
+
+    /** seconds between thumbnails, 0 disables thumbnail mode */
+    private double thumbnailInterval;
+
+    /** size of RGB frames */
+    private int outputWidth;
+    private int outputHeight;
+
+    /** number of keyframe-aligned segments decoded in parallel, 0 disables segmented decoding */
+    private int segments;
+
+    /** budget in megabytes of the decoded frames buffered by segments ahead of the one being written */
+    private int segmentBufferMegabytes;
+
+    /** pts range [segmentStart, segmentEnd) of a segment decoder */
+    private long segmentStart;
+    private long segmentEnd;
+
+    /** decoded frames of a segment decoder, in pts order */
+    private BlockingQueue<AVFrame> segmentQueue;
+
+    /** position of a segment decoder in the stream */
+    private int segmentIndex;
+
+    /** index of the segment being written, shared by the segment decoders */
+    private AtomicInteger segmentHead;
+
+    /** frames segments not being written may still buffer, shared by the segment decoders */
+    private Semaphore segmentBudget;
+
+    /** frames in segmentQueue that hold a permit of segmentBudget */
+    private final AtomicInteger budgetedFrames = new AtomicInteger();
+
+    /** packet index of the input file, null if it is not built yet */
+    private PacketIndex index;
+
+    /** packet index file, null for the sidecar next to the input file */
+    private String indexFile;
+
+    /** comma separated positions in milliseconds of frames to extract, null to decode the whole file */
+    private String positions;
+
+    /** number of random frame positions to extract, 0 disables the random access benchmark */
+    private int seekBench;
+
+    /** pts of the frame requested by {@link #getFrameAt(long)} */
+    private long seekTarget = AV_NOPTS_VALUE();
+
+    /** requested frame is decoded */
+    private boolean seekFound;
+
+    /** random positions of the benchmark are taken from [0, seekWindow) milliseconds, 0 for the whole file */
+    private long seekWindow;
+
+    /** decoded frame cache budget in megabytes, 0 disables the cache */
+    private int cacheMegabytes;
+
+    /** decoded frames of {@link #getFrameAt(long)}, null if disabled */
+    private FrameCache frameCache;
+
+    /** references to decoded frames passed from the segment decoders or kept by the frame cache */
+    private FramePool framePool;
+
+    /** pts of the keyframe {@link #getFrameAt(long)} started decoding from */
+    private long seekKeyframe;
+
+    /** "file" to let the demuxer open the file, "mmap", "memory" or "channel" to read it through {@link ChannelInput} */
+    private String inputMode;
+
+    /** input file loaded into memory, shared with segment decoders */
+    private ByteBuffer inputBuffer;
+
+    /** Y4M or raw planar file the decoded frames are written to instead of png files, null for png files */
+    private String yuvOutput;
+
+    /** "channel" to write the yuv output in chunks, "mmap" to write it through mapped windows */
+    private String yuvIo;
+
+    /** writer of the yuv output, opened with the format and size of the first frame */
+    private YuvWriter yuvWriter;
+
+    /** CSV or binary luma timeline written instead of png files, null for png files */
+    private String analysisOutput;
+
+    /** number of bands analyzed in parallel, 0 means one per available core */
+    private int analyzeSlices;
+
+    /** luma statistics of every frame, opened with the format and size of the first frame */
+    private LumaAnalyzer lumaAnalyzer;
+
+    /** directory of the png files, null for the working directory */
+    private File outputDirectory;
+
+    /** decodes one file of a {@link BatchDecode} batch: the log level is left alone and nothing is printed */
+    private boolean batch;
+
+    /** wall clock time of the last {@link #start(String)} */
+    private long elapsedNanos;
+
+    /** custom input of the demuxer, null if the demuxer opened the file */
+    private ChannelInput input;
+    private FileChannel inputChannel;
+
     private DemuxAndDecodeH264() {
         tb1000 = new AVRational();
         tb1000.num(1);
         tb1000.den(1000);
     }
 
-    public static void main(String... argv) throws IOException {
-        new DemuxAndDecodeH264().start(argv);
+    public static void main(String... argv) throws IOException, ParseException {
+        Options options = new Options();
+        options.addOption("help", false, "show help and exit");
+        options.addOption("threads", true, "number of decoding threads, 0 for one per core");
+        options.addOption("thread_type", true, "decoder threading: frame or slice");
+        options.addOption("writers", true, "number of png writer threads, 0 for one per core");
+        options.addOption("buffers", true, "number of pooled images, 0 for two per writer");
+        options.addOption("thumbnail_interval", true, "seconds between keyframe thumbnails, 0 to decode every frame");
+        options.addOption("thumbnail_size", true, "thumbnail size WxH");
+        options.addOption("segments", true, "number of keyframe-aligned segments decoded in parallel, 0 to disable");
+        options.addOption("segment_buffer_mb", true, "megabytes of decoded frames segments may buffer ahead of the one being written");
+        options.addOption("at", true, "comma separated positions in milliseconds of frames to extract");
+        options.addOption("seek_bench", true, "number of frames at random positions to extract");
+        options.addOption("seek_window", true, "random positions are taken from the first N milliseconds, 0 for all");
+        options.addOption("index", true, "packet index file used by -at, -seek_bench and -segments, default input.idx");
+        options.addOption("cache_mb", true, "decoded frame cache size in megabytes, 0 to disable");
+        options.addOption("sws_slices", true, "number of bands converted in parallel, 0 for one per core");
+        options.addOption("input", true, "input route: file, mmap, memory or channel");
+        options.addOption("yuv", true, "write decoded planes to a Y4M file (.y4m) or a raw planar file instead of png files");
+        options.addOption("yuv_io", true, "yuv output: channel or mmap");
+        options.addOption("analyze", true, "write luma statistics of every frame to a CSV (.csv) or binary timeline instead of png files");
+        options.addOption("analyze_slices", true, "number of bands analyzed in parallel, 0 for one per core");
+        options.addOption("probes", true, "time pipeline stages, export them over JMX and write them as JSON to the file at exit");
+        CommandLine cmd = new DefaultParser().parse(options, argv);
+        if (cmd.hasOption("help") || cmd.getArgs().length == 0) {
+            HelpFormatter helpFormatter = new HelpFormatter();
+            helpFormatter.printHelp("DemuxAndDecodeH264 [options] input.mkv", options);
+        } else {
+            System.out.println("options:");
+            DemuxAndDecodeH264 instance = new DemuxAndDecodeH264();
+            instance.threads = Integer.parseInt(getOption(cmd, "threads", DEFAULT_THREADS));
+            instance.threadType = getOption(cmd, "thread_type", DEFAULT_THREAD_TYPE);
+            instance.writers = Integer.parseInt(getOption(cmd, "writers", DEFAULT_WRITERS));
+            instance.buffers = Integer.parseInt(getOption(cmd, "buffers", DEFAULT_BUFFERS));
+            instance.thumbnailInterval =
+                Double.parseDouble(getOption(cmd, "thumbnail_interval", DEFAULT_THUMBNAIL_INTERVAL));
+            String[] thumbnailSize = getOption(cmd, "thumbnail_size", DEFAULT_THUMBNAIL_SIZE).split("x");
+            instance.outputWidth = Integer.parseInt(thumbnailSize[0]);
+            instance.outputHeight = Integer.parseInt(thumbnailSize[1]);
+            instance.segments = Integer.parseInt(getOption(cmd, "segments", DEFAULT_SEGMENTS));
+            instance.segmentBufferMegabytes = Integer.parseInt(getOption(cmd, "segment_buffer_mb", DEFAULT_SEGMENT_BUFFER_MB));
+            instance.positions = getOption(cmd, "at", null);
+            instance.indexFile = getOption(cmd, "index", null);
+            instance.seekBench = Integer.parseInt(getOption(cmd, "seek_bench", DEFAULT_SEEK_BENCH));
+            instance.seekWindow = Long.parseLong(getOption(cmd, "seek_window", DEFAULT_SEEK_WINDOW));
+            instance.cacheMegabytes = Integer.parseInt(getOption(cmd, "cache_mb", DEFAULT_CACHE_MB));
+            instance.swsSlices = Integer.parseInt(getOption(cmd, "sws_slices", DEFAULT_SWS_SLICES));
+            instance.inputMode = getOption(cmd, "input", DEFAULT_INPUT);
+            instance.yuvOutput = getOption(cmd, "yuv", null);
+            instance.yuvIo = getOption(cmd, "yuv_io", DEFAULT_YUV_IO);
+            instance.analysisOutput = getOption(cmd, "analyze", null);
+            instance.analyzeSlices = Integer.parseInt(getOption(cmd, "analyze_slices", DEFAULT_ANALYZE_SLICES));
+            if ((instance.yuvOutput != null || instance.analysisOutput != null) && instance.thumbnailInterval > 0) {
+                throw new ParseException("-yuv and -analyze take every decoded frame, they do not combine with -thumbnail_interval");
+            }
+            String probes = getOption(cmd, "probes", null);
+            if (probes != null) {
+                Probes.enable();
+                Probes.dumpAtExit(new File(probes));
+            }
+            instance.start(cmd.getArgs()[0]);
+        }
+    }
+
+    private static String getOption(CommandLine cmd, String key, String defaultValue) {
+        String v = cmd.getOptionValue(key, defaultValue);
+        System.out.println("\t" + key + " = \"" + v + "\"");
+        return v;
+    }
+
+    /**
+     * Decoder of one file of a batch, writing png files of every frame or of thumbnails to the directory
+     *
+     * @param threads number of decoding threads
+     * @param thumbnailInterval seconds between keyframe thumbnails, 0 to decode every frame
+     */
+    static DemuxAndDecodeH264 batchJob(File outputDirectory, int threads, double thumbnailInterval,
+                                       int thumbnailWidth, int thumbnailHeight) {
+        DemuxAndDecodeH264 instance = new DemuxAndDecodeH264();
+        instance.batch = true;
+        instance.outputDirectory = outputDirectory;
+        instance.threads = threads;
+        instance.threadType = DEFAULT_THREAD_TYPE;
+        instance.writers = 1;
+        instance.thumbnailInterval = thumbnailInterval;
+        instance.outputWidth = thumbnailWidth;
+        instance.outputHeight = thumbnailHeight;
+        instance.swsSlices = 1;
+        instance.inputMode = DEFAULT_INPUT;
+        // no seeking, segments or frame cache: the job writes no index sidecar and pools no frames
+        instance.segments = 0;
+        instance.cacheMegabytes = 0;
+        return instance;
+    }
+
+    /**
+     * @return number of frames written by the last {@link #start(String)}
+     */
+    int frames() {
+        return nframe;
+    }
+
+    long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Decodes the file, native resources are freed even if decoding fails
+     */
+    void start(String file) throws IOException {
+        if (!batch) {
+            av_log_set_level(AV_LOG_VERBOSE);
+        }
+        try {
+            decode(file);
+        } finally {
+            free();
+        }
+    }
+
+    private void decode(String file) throws IOException {
+        File media = new File(file);
+        openInput(file);
+        findVideoStream();
+        initDecoder();
+        initYuv420Frame();
+        if (thumbnailInterval <= 0) {
+            outputWidth = codecContext.width();
+            outputHeight = codecContext.height();
+        }
+        if (yuvOutput == null && analysisOutput == null) {
+            getSwsContext();
+            initImageWriter();
+        }
+
+        long startNanos = System.nanoTime();
+        avpacket = av_packet_alloc();
+        try {
+            decodeFrames(media);
+        } finally {
+            if (imageWriter != null) {
+                imageWriter.close();
+            }
+            if (yuvWriter != null) {
+                yuvWriter.close();
+            }
+            if (lumaAnalyzer != null) {
+                lumaAnalyzer.close();
+            }
+        }
+        elapsedNanos = System.nanoTime() - startNanos;
+        if (!batch) {
+            printStats(elapsedNanos);
+        }
+    }
+
+    private void decodeFrames(File media) throws IOException {
+        if (thumbnailInterval > 0) {
+            extractThumbnails();
+        } else
+        if (segments > 0) {
+            decodeSegments(media);
+        } else
+        if (positions != null || seekBench > 0) {
+            extractFrames(media);
+        } else {
+            long demuxStart = DEMUX.begin();
+            while ((av_read_frame(avfmtCtx, avpacket)) >= 0) {
+                DEMUX.end(demuxStart);
+                if (avpacket.stream_index() == videoStream.index()) {
+                    processAVPacket(avpacket);
+                }
+                av_packet_unref(avpacket);
+                demuxStart = DEMUX.begin();
+            }
+            // now process delayed frames
+            processAVPacket(null);
+        }
+    }
+
+    private void printStats(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("decoded %d frames in %.3f s: %.1f fps (%.1f fps in decoder calls)",
+                nframe, seconds, nframe / seconds, nframe / (decodeNanos / 1e9)));
+        if (latencySamples > 0) {
+            System.out.println(String.format("decode latency per frame: avg %.3f ms, max %.3f ms",
+                    latencyNanos / 1e6 / latencySamples, maxLatencyNanos / 1e6));
+        }
+        if (imageWriter != null) {
+            System.out.println("decoder waited for a free image " + imageWriter.getStalls() + " times");
+        }
+        if (yuvWriter != null) {
+            System.out.println(String.format("wrote %d frames, %.1f MB to %s: %.1f MB/s",
+                    yuvWriter.frames(), yuvWriter.bytes() / 1e6, yuvOutput, yuvWriter.bytes() / 1e6 / seconds));
+        }
+        if (lumaAnalyzer != null) {
+            System.out.println(String.format("analyzed %d frames: %d black, %d frozen, %d scene cuts",
+                    lumaAnalyzer.frames(), lumaAnalyzer.blackFrames(), lumaAnalyzer.frozenFrames(), lumaAnalyzer.cuts()));
+        }
+        NativeMemory.print();
+    }
+
+    /**
+     * Splits the stream into keyframe-aligned segments and decodes each of them with its own
+     * demuxer and decoder on a separate thread. Frames are passed to {@link #processFrame} segment
+     * after segment, so they come out in pts order.
+     *
+     * The segment being written never waits. The others decode ahead into pooled frame references
+     * until the frames buffered by all of them reach the budget of {@link #segmentBufferMegabytes}.
+     */
+    private void decodeSegments(File media) throws IOException {
+        String file = media.getPath();
+        List<Long> keyframes = scanKeyframes(media);
+        int n = Math.max(1, Math.min(segments, keyframes.size()));
+        int segmentThreads = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / n);
+        AVCodecParameters par = videoStream.codecpar();
+        long frameBytes = Math.max(1, av_image_get_buffer_size(par.format(), par.width(), par.height(), 1));
+        int budgetFrames = (int) Math.max(1, Math.min(Integer.MAX_VALUE, segmentBufferMegabytes * 1024L * 1024L / frameBytes));
+
+        framePool = new FramePool("segment frame pool");
+        AtomicInteger head = new AtomicInteger();
+        Semaphore budget = new Semaphore(budgetFrames);
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        List<DemuxAndDecodeH264> decoders = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < n; i++) {
+                DemuxAndDecodeH264 decoder = new DemuxAndDecodeH264();
+                decoder.threads = segmentThreads;
+                decoder.threadType = threadType;
+                decoder.inputMode = inputMode;
+                decoder.inputBuffer = inputBuffer;
+                decoder.segmentStart = i == 0 ? Long.MIN_VALUE : keyframes.get(i * keyframes.size() / n);
+                decoder.segmentEnd = i == n - 1 ? Long.MAX_VALUE : keyframes.get((i + 1) * keyframes.size() / n);
+                decoder.segmentQueue = new LinkedBlockingQueue<>();
+                decoder.segmentIndex = i;
+                decoder.segmentHead = head;
+                decoder.segmentBudget = budget;
+                decoder.framePool = framePool;
+                decoders.add(decoder);
+                futures.add(executor.submit(() -> {
+                    try {
+                        decoder.decodeSegment(file);
+                        return null;
+                    } finally {
+                        try {
+                            decoder.free();
+                        } finally {
+                            decoder.segmentQueue.add(END_OF_SEGMENT);
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < n; i++) {
+                DemuxAndDecodeH264 decoder = decoders.get(i);
+                head.set(i);
+                AVFrame frame;
+                while ((frame = decoder.segmentQueue.take()) != END_OF_SEGMENT) {
+                    decoder.releaseBudget();
+                    try {
+                        processFrame(frame);
+                    } finally {
+                        framePool.release(frame);
+                    }
+                }
+                futures.get(i).get();
+
+                decodeNanos += decoder.decodeNanos;
+                latencyNanos += decoder.latencyNanos;
+                maxLatencyNanos = Math.max(maxLatencyNanos, decoder.maxLatencyNanos);
+                latencySamples += decoder.latencySamples;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("segment decoding failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+            for (DemuxAndDecodeH264 decoder : decoders) {
+                AVFrame frame;
+                while ((frame = decoder.segmentQueue.poll()) != null) {
+                    if (frame != END_OF_SEGMENT) {
+                        framePool.release(frame);
+                    }
+                }
+            }
+            if (!batch) {
+                framePool.print();
+            }
+            framePool.close();
+        }
+    }
+
+    /**
+     * Waits for the segment decoders to return, they stop at the next decoded frame once interrupted
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                System.err.println("waiting for segment decoders to stop");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return pts of all video keyframes
+     */
+    private List<Long> scanKeyframes(File media) throws IOException {
+        ensureIndex(media);
+        List<Long> keyframes = new ArrayList<>();
+        for (int i = 0; i < index.keyframeCount(); i++) {
+            keyframes.add(index.pts(index.keyframe(i)));
+        }
+        return keyframes;
+    }
+
+    /**
+     * Loads the packet index, or builds it with a pass over the file if there is no up to date one.
+     * A built index is saved for the next run if the index file can be written.
+     */
+    private void ensureIndex(File media) throws IOException {
+        if (index != null) {
+            return;
+        }
+        File file = indexFile != null ? new File(indexFile) : PacketIndex.sidecar(media);
+        try {
+            index = PacketIndex.load(media, file);
+        } catch (IOException e) {
+            System.err.println("ignoring unreadable index " + file + ": " + e.getMessage());
+        }
+        if (index != null && index.streamIndex() == videoStream.index()) {
+            return;
+        }
+        AVRational tb = videoStream.time_base();
+        PacketIndex.Builder indexBuilder = new PacketIndex.Builder(videoStream.index(), tb.num(), tb.den());
+        while (av_read_frame(avfmtCtx, avpacket) >= 0) {
+            if (avpacket.stream_index() == videoStream.index()) {
+                indexBuilder.add(avpacket.pts(), avpacket.pos(), avpacket.size(), (avpacket.flags() & AV_PKT_FLAG_KEY) != 0);
+            }
+            av_packet_unref(avpacket);
+        }
+        index = indexBuilder.build(media);
+        try {
+            indexBuilder.write(media, file);
+        } catch (IOException e) {
+            System.err.println("could not write index " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Extracts frames at the requested positions, or at random positions and reports random access latency
+     */
+    private void extractFrames(File media) throws IOException {
+        ensureIndex(media);
+        if (cacheMegabytes > 0) {
+            framePool = new FramePool("frame cache pool");
+            frameCache = new FrameCache(cacheMegabytes * 1024L * 1024L, framePool);
+        }
+        long[] millis;
+        if (positions != null) {
+            millis = Arrays.stream(positions.split(",")).mapToLong(p -> Long.parseLong(p.trim())).toArray();
+        } else {
+            long durationMillis = avfmtCtx.duration() / (AV_TIME_BASE / 1000);
+            if (seekWindow > 0) {
+                durationMillis = Math.min(seekWindow, durationMillis);
+            }
+            Random random = new Random(0);
+            millis = new long[seekBench];
+            for (int i = 0; i < seekBench; i++) {
+                millis[i] = (long) (random.nextDouble() * durationMillis);
+            }
+        }
+
+        long[] latencies = new long[millis.length];
+        for (int i = 0; i < millis.length; i++) {
+            long t0 = System.nanoTime();
+            if (!getFrameAt(millis[i])) {
+                System.out.println("no frame at " + millis[i] + " ms");
+            }
+            latencies[i] = System.nanoTime() - t0;
+        }
+        Arrays.sort(latencies);
+        if (latencies.length > 0) {
+            System.out.println(String.format("random access latency: p50 %.3f ms, p90 %.3f ms, max %.3f ms",
+                    latencies[latencies.length / 2] / 1e6,
+                    latencies[latencies.length * 9 / 10] / 1e6,
+                    latencies[latencies.length - 1] / 1e6));
+        }
+        if (frameCache != null) {
+            System.out.println(String.format("frame cache: %d hits, %d misses, %d GOPs evicted, %d MB in use",
+                    frameCache.hits(), frameCache.misses(), frameCache.evictions(), frameCache.bytes() >> 20));
+            frameCache.clear();
+            framePool.print();
+            framePool.close();
+        }
     }
 
-    private void start(String[] argv) throws IOException {
-        av_log_set_level(AV_LOG_VERBOSE);
+    /**
+     * Seeks to the keyframe before the frame shown at the given time and decodes forward until that frame.
+     * With the frame cache enabled a cached frame is only converted, and on a miss the rest of the GOP
+     * is decoded into the cache too.
+     *
+     * @return false if there is no frame at this position
+     */
+    private boolean getFrameAt(long millis) throws IOException {
+        long pts = av_rescale_q(millis, tb1000, videoStream.time_base());
+        int entry = index.frameAt(pts);
+        if (entry < 0) {
+            return false;
+        }
+        if (frameCache != null) {
+            AVFrame cached = frameCache.get(videoStream.index(), index.pts(entry));
+            if (cached != null) {
+                processFrame(cached);
+                return true;
+            }
+        }
+        int keyframe = index.keyframe(index.keyframeBefore(pts));
+        if (av_seek_frame(avfmtCtx, videoStream.index(), index.pts(keyframe), AVSEEK_FLAG_BACKWARD) < 0) {
+            throw new IOException("av_seek_frame error");
+        }
+        flushDecoder();
 
-        openInput(argv[0]);
+        seekTarget = index.pts(entry);
+        seekKeyframe = index.pts(keyframe);
+        seekFound = false;
+        while (av_read_frame(avfmtCtx, avpacket) >= 0) {
+            if (avpacket.stream_index() == videoStream.index()) {
+                boolean nextGop = (avpacket.flags() & AV_PKT_FLAG_KEY) != 0 && avpacket.pts() > seekTarget;
+                if (seekFound && (frameCache == null || nextGop)) {
+                    av_packet_unref(avpacket);
+                    break;
+                }
+                processAVPacket(avpacket);
+            }
+            av_packet_unref(avpacket);
+        }
+        if (!seekFound || frameCache != null) {
+            processAVPacket(null);
+        }
+        flushDecoder();
+        seekTarget = AV_NOPTS_VALUE();
+        return seekFound;
+    }
+
+    /**
+     * Decodes frames with pts in [segmentStart, segmentEnd) to segmentQueue.
+     *
+     * Packets are read past the keyframe at segmentEnd up to the first packet shown after it, so
+     * leading pictures of the next GOP are decoded here and dropped by the next segment.
+     */
+    private void decodeSegment(String file) throws IOException {
+        openInput(file);
         findVideoStream();
         initDecoder();
-        initRgbFrame();
         initYuv420Frame();
-        getSwsContext();
+        avpacket = av_packet_alloc();
 
-        avpacket = new avcodec.AVPacket();
-        while ((av_read_frame(avfmtCtx, avpacket)) >= 0) {
+        if (segmentStart != Long.MIN_VALUE &&
+                av_seek_frame(avfmtCtx, videoStream.index(), segmentStart, AVSEEK_FLAG_BACKWARD) < 0) {
+            throw new IOException("av_seek_frame error");
+        }
+        long demuxStart = DEMUX.begin();
+        while (av_read_frame(avfmtCtx, avpacket) >= 0) {
+            DEMUX.end(demuxStart);
             if (avpacket.stream_index() == videoStream.index()) {
+                if (avpacket.pts() > segmentEnd) {
+                    break;
+                }
                 processAVPacket(avpacket);
             }
             av_packet_unref(avpacket);
+            demuxStart = DEMUX.begin();
         }
-        // now process delayed frames
         processAVPacket(null);
-        free();
+    }
+
+    /**
+     * Seeks to the keyframe at or before every thumbnail position and decodes only that keyframe
+     */
+    private void extractThumbnails() throws IOException {
+        if (avfmtCtx.duration() == AV_NOPTS_VALUE()) {
+            throw new IOException("unknown duration");
+        }
+        long durationMillis = avfmtCtx.duration() / (AV_TIME_BASE / 1000);
+        long intervalMillis = Math.max(1, (long) (thumbnailInterval * 1000));
+        codecContext.skip_frame(AVDISCARD_NONKEY);
+
+        long lastKeyframePts = AV_NOPTS_VALUE();
+        for (long t = 0; t < durationMillis; t += intervalMillis) {
+            long ts = av_rescale_q(t, tb1000, videoStream.time_base());
+            if (av_seek_frame(avfmtCtx, videoStream.index(), ts, AVSEEK_FLAG_BACKWARD) < 0) {
+                throw new IOException("av_seek_frame error");
+            }
+            if (!readKeyframe()) {
+                break;
+            }
+            if (avpacket.pts() != lastKeyframePts) {
+                lastKeyframePts = avpacket.pts();
+                flushDecoder();
+                processAVPacket(avpacket);
+                // drain the decoder so the keyframe comes out without waiting for more packets
+                processAVPacket(null);
+            }
+            av_packet_unref(avpacket);
+        }
+        flushDecoder();
+    }
+
+    /**
+     * @return true if avpacket holds the next video keyframe
+     */
+    private boolean readKeyframe() {
+        while (av_read_frame(avfmtCtx, avpacket) >= 0) {
+            if (avpacket.stream_index() == videoStream.index() && (avpacket.flags() & AV_PKT_FLAG_KEY) != 0) {
+                return true;
+            }
+            av_packet_unref(avpacket);
+        }
+        return false;
     }
 
     private AVFormatContext openInput(String file) throws IOException {
+        if (!"file".equals(inputMode)) {
+            return openChannelInput(new File(file));
+        }
         avfmtCtx = new AVFormatContext(null);
         BytePointer filePointer = new BytePointer(file);
         int r = avformat.avformat_open_input(avfmtCtx, filePointer, null, null);
@@ -94,6 +795,52 @@ public final class DemuxAndDecodeH264 {
         return avfmtCtx;
     }
 
+    /**
+     * Opens the demuxer over mapped windows of the file, a loaded copy of it or a file channel
+     */
+    private AVFormatContext openChannelInput(File media) throws IOException {
+        switch (inputMode) {
+            case "mmap":
+                inputChannel = FileChannel.open(media.toPath(), StandardOpenOption.READ);
+                input = ChannelInput.mapped(inputChannel);
+                break;
+            case "memory":
+                if (inputBuffer == null) {
+                    inputBuffer = ChannelInput.load(media);
+                }
+                input = ChannelInput.of(inputBuffer);
+                break;
+            case "channel":
+                inputChannel = FileChannel.open(media.toPath(), StandardOpenOption.READ);
+                input = ChannelInput.of(inputChannel);
+                break;
+            default:
+                throw new IOException("unknown input " + inputMode);
+        }
+
+        avfmtCtx = avformat_alloc_context();
+        avfmtCtx.pb(input.avio());
+        avfmtCtx.flags(avfmtCtx.flags() | AVFMT_FLAG_CUSTOM_IO);
+        int r = avformat_open_input(avfmtCtx, (String) null, null, null);
+        if (r < 0) {
+            // the format context is freed by avformat_open_input
+            closeInput();
+            throw new IOException("avformat_open_input error: " + r);
+        }
+        return avfmtCtx;
+    }
+
+    private void closeInput() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+        if (inputChannel != null) {
+            inputChannel.close();
+            inputChannel = null;
+        }
+    }
+
     private void findVideoStream() throws IOException {
         int r = avformat_find_stream_info(avfmtCtx, (PointerPointer) null);
         if (r < 0) {
@@ -122,9 +869,25 @@ public final class DemuxAndDecodeH264 {
             codecContext.flags(codecContext.flags() | avcodec.AV_CODEC_CAP_TRUNCATED);
         }
         avcodec_parameters_to_context(codecContext, videoStream.codecpar());
+        int nThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        codecContext.thread_count(nThreads);
+        switch (threadType) {
+            case "frame":
+                codecContext.thread_type(FF_THREAD_FRAME);
+                break;
+            case "slice":
+                codecContext.thread_type(FF_THREAD_SLICE);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown thread type: " + threadType);
+        }
         if(avcodec_open2(codecContext, codec, (PointerPointer) null) < 0) {
             throw new RuntimeException("Error: could not open codec.\n");
         }
+        if (!batch) {
+            System.out.println(String.format("decoder threads: %d, active thread type: %d",
+                    codecContext.thread_count(), codecContext.active_thread_type()));
+        }
     }
 
     private void initYuv420Frame() {
@@ -134,32 +897,41 @@ public final class DemuxAndDecodeH264 {
         }
     }
 
-    private void initRgbFrame() {
-        rgbFrame = av_frame_alloc();
-        rgbFrame.format(AV_PIX_FMT_BGR24);
-        rgbFrame.width(codecContext.width());
-        rgbFrame.height(codecContext.height());
-        int ret = av_image_alloc(rgbFrame.data(),
-                rgbFrame.linesize(),
-                rgbFrame.width(),
-                rgbFrame.height(),
-                rgbFrame.format(),
-                1);
-        if (ret < 0) {
-            throw new RuntimeException("could not allocate buffer!");
-        }
-        img = new BufferedImage(rgbFrame.width(), rgbFrame.height(), BufferedImage.TYPE_3BYTE_BGR);
+    private void initImageWriter() {
+        int nWriters = writers > 0 ? writers : Runtime.getRuntime().availableProcessors();
+        int nBuffers = buffers > 0 ? buffers : 2 * nWriters;
+        int width = outputWidth;
+        int height = outputHeight;
+        imageWriter = new AsyncImageWriter("png", nWriters, nBuffers,
+                () -> FrameImage.allocate(width, height, AV_PIX_FMT_BGR24));
     }
 
     private void getSwsContext() {
-        sws_ctx = swscale.sws_getContext(
+        scaler = new SliceScaler(
                 codecContext.width(), codecContext.height(), codecContext.pix_fmt(),
-                rgbFrame.width(), rgbFrame.height(), rgbFrame.format(),
-                0, null, null, (DoublePointer) null);
+                outputWidth, outputHeight, AV_PIX_FMT_BGR24,
+                thumbnailInterval > 0 ? swscale.SWS_AREA : 0, swsSlices);
+    }
+
+    /**
+     * Drops the frames inside the decoder together with their send times
+     */
+    private void flushDecoder() {
+        avcodec_flush_buffers(codecContext);
+        flushedSequence = packetSequence;
     }
 
     private void processAVPacket(AVPacket avpacket) throws IOException {
+        long t0 = System.nanoTime();
+        if (avpacket != null) {
+            long seq = ++packetSequence;
+            sendNanos[(int) (seq % SEND_RING)] = t0;
+            sendDts[(int) (seq % SEND_RING)] = avpacket.dts();
+        }
+        long sendStart = DECODE_SEND.begin();
         int ret = avcodec.avcodec_send_packet(codecContext, avpacket);
+        DECODE_SEND.end(sendStart);
+        decodeNanos += System.nanoTime() - t0;
         if (ret < 0) {
             throw new RuntimeException("Error sending a packet for decoding\n");
         }
@@ -169,26 +941,111 @@ public final class DemuxAndDecodeH264 {
     private void receiveFrames() throws IOException {
         int ret = 0;
         while (ret >= 0) {
+            long t0 = System.nanoTime();
+            long receiveStart = DECODE_RECEIVE.begin();
             ret = avcodec.avcodec_receive_frame(codecContext, yuv420Frame);
+            DECODE_RECEIVE.end(receiveStart);
+            long t1 = System.nanoTime();
+            decodeNanos += t1 - t0;
             if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF()) {
                 continue;
             } else
             if (ret < 0) {
                 throw new RuntimeException("error during decoding");
             }
-            swscale.sws_scale(sws_ctx, yuv420Frame.data(), yuv420Frame.linesize(), 0,
-                    yuv420Frame.height(), rgbFrame.data(), rgbFrame.linesize());
+            recordLatency(yuv420Frame.pkt_dts(), t1);
+            if (seekTarget != AV_NOPTS_VALUE()) {
+                if (frameCache != null && yuv420Frame.best_effort_timestamp() >= seekKeyframe) {
+                    frameCache.put(videoStream.index(), seekKeyframe, yuv420Frame);
+                }
+                if (!seekFound && yuv420Frame.best_effort_timestamp() == seekTarget) {
+                    seekFound = true;
+                    processFrame(yuv420Frame);
+                }
+            } else
+            if (segmentQueue == null) {
+                processFrame(yuv420Frame);
+            } else {
+                long pts = yuv420Frame.best_effort_timestamp();
+                if (pts >= segmentStart && pts < segmentEnd) {
+                    putSegmentFrame(framePool.ref(yuv420Frame));
+                }
+            }
+        }
+    }
 
-            rgbFrame.best_effort_timestamp(yuv420Frame.best_effort_timestamp());
-            processFrame(rgbFrame);
+    /**
+     * Adds the time since the packet of the frame was sent to the latencies. Frames leave the
+     * decoder a few packets after theirs, so the search back from the last packet is short; a
+     * matched packet is cleared so that it is counted once.
+     */
+    private void recordLatency(long dts, long now) {
+        if (dts == AV_NOPTS_VALUE()) {
+            return;
+        }
+        long oldest = Math.max(flushedSequence, packetSequence - SEND_RING);
+        for (long seq = packetSequence; seq > oldest; seq--) {
+            int slot = (int) (seq % SEND_RING);
+            if (sendDts[slot] == dts) {
+                sendDts[slot] = AV_NOPTS_VALUE();
+                long latency = now - sendNanos[slot];
+                latencyNanos += latency;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                latencySamples++;
+                return;
+            }
         }
     }
 
-    private void processFrame(AVFrame rgbFrame) throws IOException {
-        DataBufferByte buffer = (DataBufferByte) img.getRaster().getDataBuffer();
-        rgbFrame.data(0).get(buffer.getData());
+    /**
+     * Queues a frame of the segment, waiting for the shared budget unless the segment is being written
+     */
+    private void putSegmentFrame(AVFrame frame) throws IOException {
+        try {
+            while (segmentHead.get() != segmentIndex) {
+                if (segmentBudget.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                    budgetedFrames.incrementAndGet();
+                    break;
+                }
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            segmentQueue.add(frame);
+        } catch (InterruptedException e) {
+            framePool.release(frame);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    /**
+     * Returns the permit of a frame taken from segmentQueue, if it holds one
+     */
+    private void releaseBudget() {
+        if (budgetedFrames.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+            segmentBudget.release();
+        }
+    }
 
-        long ptsMillis = av_rescale_q(rgbFrame.best_effort_timestamp(), videoStream.time_base(), tb1000);
+    private void processFrame(AVFrame yuv420Frame) throws IOException {
+        if (yuvOutput != null || analysisOutput != null) {
+            if (analysisOutput != null) {
+                analyzeLuma(yuv420Frame);
+            }
+            if (yuvOutput != null) {
+                writeYuv(yuv420Frame);
+            }
+            ++nframe;
+            return;
+        }
+        FrameImage img = imageWriter.acquire();
+        AVFrame rgbFrame = img.frame();
+        long convertStart = CONVERT.begin();
+        scaler.scale(yuv420Frame, rgbFrame);
+        CONVERT.end(convertStart);
+
+        long ptsMillis = av_rescale_q(yuv420Frame.best_effort_timestamp(), videoStream.time_base(), tb1000);
         Duration d = Duration.of(ptsMillis, ChronoUnit.MILLIS);
 
         String name = String.format("img_%05d_%02d-%02d-%02d-%03d.png", ++nframe,
@@ -196,18 +1053,57 @@ public final class DemuxAndDecodeH264 {
                 d.toMinutesPart(),
                 d.toSecondsPart(),
                 d.toMillisPart());
-        ImageIO.write(img, "png", new File(name));
+        imageWriter.submit(img, new File(outputDirectory, name));
+    }
+
+    /**
+     * Writes the planes of the frame as they are, without conversion
+     */
+    private void writeYuv(AVFrame frame) throws IOException {
+        if (yuvWriter == null) {
+            yuvWriter = new YuvWriter(new File(yuvOutput), yuvOutput.endsWith(".y4m"), "mmap".equals(yuvIo),
+                    YUV_CHUNK_BYTES, frame.format(), frame.width(), frame.height(),
+                    av_guess_frame_rate(avfmtCtx, videoStream, null), codecContext.sample_aspect_ratio());
+        }
+        long t0 = YUV_WRITE.begin();
+        yuvWriter.write(frame);
+        YUV_WRITE.end(t0);
     }
 
-    private void free() {
-        av_packet_unref(avpacket);
-        avcodec.avcodec_close(codecContext);
-        avcodec.avcodec_free_context(codecContext);
+    /**
+     * Appends histogram, mean, variance and difference to the previous frame of the luma plane to the timeline
+     */
+    private void analyzeLuma(AVFrame frame) throws IOException {
+        if (lumaAnalyzer == null) {
+            lumaAnalyzer = new LumaAnalyzer(frame.format(), frame.width(), frame.height(),
+                    new File(analysisOutput), analyzeSlices);
+        }
+        long t0 = ANALYZE.begin();
+        lumaAnalyzer.analyze(frame, av_rescale_q(frame.best_effort_timestamp(), videoStream.time_base(), tb1000));
+        ANALYZE.end(t0);
+    }
 
-        swscale.sws_freeContext(sws_ctx);
-        av_frame_free(rgbFrame);
-        av_frame_free(yuv420Frame);
-        avformat.avformat_close_input(avfmtCtx);
-        avformat.avformat_free_context(avfmtCtx);
+    /**
+     * Frees whatever was allocated, also after a failure half way through opening the file
+     */
+    private void free() throws IOException {
+        if (avpacket != null) {
+            av_packet_free(avpacket);
+        }
+        if (codecContext != null) {
+            avcodec.avcodec_close(codecContext);
+            avcodec.avcodec_free_context(codecContext);
+        }
+        if (scaler != null) {
+            scaler.close();
+        }
+        if (yuv420Frame != null) {
+            av_frame_free(yuv420Frame);
+        }
+        if (avfmtCtx != null && !avfmtCtx.isNull()) {
+            avformat.avformat_close_input(avfmtCtx);
+            avformat.avformat_free_context(avfmtCtx);
+        }
+        closeInput();
     }
 }
@@ -1,17 +1,48 @@
 import org.apache.commons.cli.*;
 import org.bytedeco.javacpp.*;
+import util.ChannelOutput;
+import util.FrameImage;
+import util.FramePool;
+import util.FrameRing;
+import util.NativeMemory;
+import util.PacketPool;
+import util.Probe;
+import util.Probes;
+import util.SliceScaler;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avformat.*;
 import static org.bytedeco.javacpp.avutil.*;
 import static org.bytedeco.javacpp.swscale.SWS_BICUBIC;
-import static org.bytedeco.javacpp.swscale.sws_getContext;
 
 public final class EncodeAndMuxH264 {
+    /** stages of the encoding pipeline, see {@link Probes} */
+    private static final Probe RENDER = Probes.get("render");
+    private static final Probe CONVERT = Probes.get("convert");
+    private static final Probe ENCODE_SEND = Probes.get("encode.send");
+    private static final Probe ENCODE_RECEIVE = Probes.get("encode.receive");
+    private static final Probe MUX_WRITE = Probes.get("mux.write");
+
     private final static String DEFAULT_FPS = "30";
     private static final String DEFAULT_BITRATE = "400000";
     private static final String DEFAULT_WIDTH = "640";
@@ -21,11 +52,40 @@ public final class EncodeAndMuxH264 {
     private static final String DEFAULT_N_FRAMES = "300";
     private static final String DEFAULT_PROFILE = "baseline";
     private static final String DEFAULT_FILE = "out.mkv";
+    private static final String DEFAULT_RENDERERS = "0";
+    private static final String DEFAULT_PACKET_QUEUE = "64";
+    private static final String DEFAULT_PRESET = "medium";
+    private static final String DEFAULT_TUNE = "";
+    private static final String DEFAULT_THREADS = "0";
+    private static final String DEFAULT_THREAD_TYPE = "frame";
+    private static final String DEFAULT_TARGET_FPS = "30";
+    private static final String DEFAULT_AUTOTUNE_FRAMES = "120";
+    private static final String DEFAULT_AUTOTUNE_CRF = "23";
+    private static final String DEFAULT_SWS_SLICES = "0";
+    private static final String DEFAULT_CHUNK_THREADS = "0";
+    private static final String DEFAULT_IO_BUFFER = "65536";
+    private static final String DEFAULT_IO_BUFFERS = "0";
+
+    /** values of FF_THREAD_FRAME and FF_THREAD_SLICE, not exported by the presets */
+    private static final int FF_THREAD_FRAME = 1;
+    private static final int FF_THREAD_SLICE = 2;
+
+    /** x264 presets from the fastest to the slowest, i.e. from the lowest to the highest quality at a given bitrate */
+    private static final String[] AUTOTUNE_PRESETS =
+        {"ultrafast", "superfast", "veryfast", "faster", "fast", "medium", "slow"};
+
+    /** x264 tunes tried by the autotuner, from the lowest to the highest quality */
+    private static final String[] AUTOTUNE_TUNES = {"zerolatency", ""};
+
+    /** threading types tried by the autotuner, from the lowest to the highest quality */
+    private static final String[] AUTOTUNE_THREAD_TYPES = {"slice", "frame"};
+
+    /** marks the end of encoded packets */
+    private static final AVPacket END_OF_STREAM = new AVPacket((Pointer) null);
 
     private AVFrame frame;
-    private AVFrame rgbFrame;
-    private swscale.SwsContext swsContext;
-    private BufferedImage image;
+    private FrameImage rgbFrame;
+    private SliceScaler swsContext;
     private AVCodecContext cc;
     private int fps;
     private int bitrate;
@@ -43,6 +103,72 @@ public final class EncodeAndMuxH264 {
     private AVRational codecTimebase;
     private AVPacket pkt;
 
+    /** encoder frames and packets passed between threads, freed with the encoder */
+    private FramePool framePool;
+    private PacketPool packetPool;
+
+    /** run render, encode and mux stages on separate threads */
+    private boolean pipeline;
+
+    /** number of renderer threads of the pipeline, 0 means one per available core */
+    private int renderers;
+
+    /** capacity of the queue between encoder and muxer */
+    private int packetQueueSize;
+
+    /** write output without random or version dependent fields */
+    private boolean bitexact;
+
+    /** encoded packets waiting for the muxer, null when muxing on the encoder thread */
+    private BlockingQueue<AVPacket> muxQueue;
+
+    /** first failure of a pipeline stage, the other stages stop once it is set */
+    private final AtomicReference<Throwable> pipelineFailure = new AtomicReference<>();
+
+    /** x264 preset and tune, empty tune for none */
+    private String preset;
+    private String tune;
+
+    /** number of encoder threads, 0 means x264 default */
+    private int threads;
+
+    /** x264 constant rate factor, 0 to encode at the bitrate */
+    private double crf;
+
+    /** "frame" or "slice" threading */
+    private String threadType;
+
+    /** wall clock time of avcodec_send_frame and avcodec_receive_packet calls */
+    private long encodeNanos;
+
+    /** number of bands converted in parallel, 0 means one per available core */
+    private int swsSlices;
+
+    /** number of GOP-sized chunks encoded in parallel, 0 disables chunked encoding */
+    private int chunkThreads;
+
+    /** also encode with a single encoder and report the speedup of chunked encoding */
+    private boolean chunkCompare;
+
+    /** "file" or "host:port" to mux through a channel instead of avio_open, null for avio_open */
+    private String channel;
+
+    /** size of the muxer buffer of the channel output */
+    private int ioBufferSize;
+
+    /** number of pooled buffers written to the channel by a writer thread, 0 for writes on the muxer thread */
+    private int ioBuffers;
+
+    /** flush the container before every keyframe, so consumers get every GOP as soon as it is encoded */
+    private boolean live;
+
+    private WritableByteChannel outputChannel;
+    private ChannelOutput channelOutput;
+
+    /** true after the first keyframe is written */
+    private boolean keyframeWritten;
+    private long liveFlushes;
+
     private EncodeAndMuxH264() {}
 
     public static void main(String... argv) throws ParseException {
@@ -57,6 +183,27 @@ public final class EncodeAndMuxH264 {
         options.addOption("n_frames", true, "number of frames");
         options.addOption("profile", true, "h264 profile");
         options.addOption("file", true, "output file name");
+        options.addOption("pipeline", false, "render, encode and mux on separate threads");
+        options.addOption("renderers", true, "number of renderer threads of the pipeline, 0 for one per core");
+        options.addOption("packet_queue", true, "packets buffered between encoder and muxer");
+        options.addOption("bitexact", false, "write reproducible output");
+        options.addOption("preset", true, "x264 preset");
+        options.addOption("tune", true, "x264 tune");
+        options.addOption("threads", true, "number of encoder threads, 0 for automatic");
+        options.addOption("thread_type", true, "encoder threading: frame or slice");
+        options.addOption("encoder_profile", true, "load preset, tune and threading from a file written by -autotune");
+        options.addOption("autotune", true, "find the best encoder settings meeting -target_fps and write them to a file");
+        options.addOption("target_fps", true, "encoding speed the autotuner has to reach");
+        options.addOption("autotune_frames", true, "number of frames encoded by every autotuner run");
+        options.addOption("autotune_crf", true, "constant quality of the autotuner runs, so speed and bitrate are compared at equal quality");
+        options.addOption("sws_slices", true, "number of bands converted in parallel, 0 for one per core");
+        options.addOption("chunk_threads", true, "encode GOP-sized chunks with independent encoders on N threads");
+        options.addOption("chunk_compare", false, "also encode with a single encoder and report the speedup");
+        options.addOption("channel", true, "mux through a Java channel: \"file\" or host:port");
+        options.addOption("io_buffer", true, "size of the channel output buffer");
+        options.addOption("io_buffers", true, "pooled buffers written by a writer thread, 0 to write on the muxer thread");
+        options.addOption("live", false, "flush the container before every keyframe");
+        options.addOption("probes", true, "time pipeline stages, export them over JMX and write them as JSON to the file at exit");
         CommandLine cmd = new DefaultParser().parse(options, argv);
         if (cmd.hasOption("help")) {
             HelpFormatter helpFormatter = new HelpFormatter();
@@ -73,8 +220,46 @@ public final class EncodeAndMuxH264 {
             instance.nFrames = Integer.parseInt(getOption(cmd,"n_frames", DEFAULT_N_FRAMES));
             instance.profile = getOption(cmd,"profile", DEFAULT_PROFILE);
             instance.ofile = getOption(cmd,"file", DEFAULT_FILE);
+            instance.pipeline = cmd.hasOption("pipeline");
+            instance.renderers = Integer.parseInt(getOption(cmd, "renderers", DEFAULT_RENDERERS));
+            instance.packetQueueSize = Integer.parseInt(getOption(cmd, "packet_queue", DEFAULT_PACKET_QUEUE));
+            instance.bitexact = cmd.hasOption("bitexact");
+            instance.swsSlices = Integer.parseInt(getOption(cmd, "sws_slices", DEFAULT_SWS_SLICES));
+            instance.chunkThreads = Integer.parseInt(getOption(cmd, "chunk_threads", DEFAULT_CHUNK_THREADS));
+            instance.chunkCompare = cmd.hasOption("chunk_compare");
+            instance.channel = cmd.getOptionValue("channel");
+            instance.ioBufferSize = Integer.parseInt(getOption(cmd, "io_buffer", DEFAULT_IO_BUFFER));
+            instance.ioBuffers = Integer.parseInt(getOption(cmd, "io_buffers", DEFAULT_IO_BUFFERS));
+            instance.live = cmd.hasOption("live");
+            String probes = getOption(cmd, "probes", null);
+            if (probes != null) {
+                Probes.enable();
+                Probes.dumpAtExit(new File(probes));
+            }
 
-            instance.start();
+            Properties encoderProfile = new Properties();
+            if (cmd.hasOption("encoder_profile")) {
+                try (Reader reader = new FileReader(getOption(cmd, "encoder_profile", null))) {
+                    encoderProfile.load(reader);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            instance.preset = getOption(cmd, "preset", encoderProfile.getProperty("preset", DEFAULT_PRESET));
+            instance.tune = getOption(cmd, "tune", encoderProfile.getProperty("tune", DEFAULT_TUNE));
+            instance.threads = Integer.parseInt(
+                getOption(cmd, "threads", encoderProfile.getProperty("threads", DEFAULT_THREADS)));
+            instance.threadType =
+                getOption(cmd, "thread_type", encoderProfile.getProperty("thread_type", DEFAULT_THREAD_TYPE));
+
+            if (cmd.hasOption("autotune")) {
+                instance.autotune(getOption(cmd, "autotune", null),
+                    Double.parseDouble(getOption(cmd, "target_fps", DEFAULT_TARGET_FPS)),
+                    Integer.parseInt(getOption(cmd, "autotune_frames", DEFAULT_AUTOTUNE_FRAMES)),
+                    Double.parseDouble(getOption(cmd, "autotune_crf", DEFAULT_AUTOTUNE_CRF)));
+            } else {
+                instance.start();
+            }
         }
     }
 
@@ -84,38 +269,524 @@ public final class EncodeAndMuxH264 {
         return v;
     }
 
-    private void start() {
-        allocCodecContext();
+    /**
+     * Encodes a short clip with every combination of preset, tune, threading type and thread count at
+     * the same constant quality. Of the combinations reaching the target fps it picks the one with the
+     * lowest bitrate, the faster one if bitrates are within 1%, or the fastest one if none reaches it.
+     *
+     * Chunked encoding runs several encoders at once, so its speed is measured over the whole run
+     * instead of the time spent in encoder calls.
+     */
+    private void autotune(String profileFile, double targetFps, int frames, double crf) {
+        AutotuneResult best = null;
+        AutotuneResult fastest = null;
+        for (String preset : AUTOTUNE_PRESETS) {
+            for (String tune : AUTOTUNE_TUNES) {
+                for (String threadType : AUTOTUNE_THREAD_TYPES) {
+                    for (int threads : autotuneThreadCounts()) {
+                        if (threads == 1 && !threadType.equals(AUTOTUNE_THREAD_TYPES[0])) {
+                            // a single thread is not split by threading type
+                            continue;
+                        }
+                        EncodeAndMuxH264 run = copySettings();
+                        run.preset = preset;
+                        run.tune = tune;
+                        run.threadType = threadType;
+                        run.threads = threads;
+                        run.crf = crf;
+                        run.nFrames = frames;
+                        File tmp;
+                        try {
+                            tmp = File.createTempFile("autotune", ".mkv");
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        run.ofile = tmp.getPath();
+                        double seconds = run.start();
+
+                        AutotuneResult result = new AutotuneResult(preset, tune, threadType, threads,
+                            frames / (run.chunkThreads > 0 ? seconds : run.encodeNanos / 1e9),
+                            tmp.length() * 8.0 * this.fps / frames / 1000);
+                        tmp.delete();
+                        System.out.println(String.format("autotune %s: %.1f fps, %.0f kbit/s",
+                            result, result.fps, result.kbps));
 
-        AVPacket pkt = av_packet_alloc();
+                        if (result.fps >= targetFps && (best == null || result.betterThan(best))) {
+                            best = result;
+                        }
+                        if (fastest == null || result.fps > fastest.fps) {
+                            fastest = result;
+                        }
+                    }
+                }
+            }
+        }
+        if (best == null) {
+            System.out.println(String.format("no settings reach %.1f fps, using the fastest ones", targetFps));
+            best = fastest;
+        }
+
+        Properties encoderProfile = new Properties();
+        encoderProfile.setProperty("preset", best.preset);
+        encoderProfile.setProperty("tune", best.tune);
+        encoderProfile.setProperty("threads", String.valueOf(best.threads));
+        encoderProfile.setProperty("thread_type", best.threadType);
+        try (Writer writer = new FileWriter(profileFile)) {
+            encoderProfile.store(writer, String.format("%dx%d, crf %.1f: %.1f fps and %.0f kbit/s measured, %.1f fps required",
+                width, height, crf, best.fps, best.kbps, targetFps));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("autotune: chose " + best + ", written to " + profileFile);
+    }
+
+    /**
+     * @return encoder thread counts tried by the autotuner: 1, 2, half and all cores, then 0 for the x264 default
+     */
+    private static List<Integer> autotuneThreadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> counts = new TreeSet<>(Arrays.asList(1, 2, Math.max(1, cores / 2), cores));
+        counts.removeIf(n -> n > cores);
+        List<Integer> threadCounts = new ArrayList<>(counts);
+        threadCounts.add(0);
+        return threadCounts;
+    }
+
+    /**
+     * Encoder settings and their measured speed and bitrate at the autotuner quality
+     */
+    private static final class AutotuneResult {
+        private final String preset;
+        private final String tune;
+        private final String threadType;
+        private final int threads;
+        private final double fps;
+        private final double kbps;
+
+        private AutotuneResult(String preset, String tune, String threadType, int threads, double fps, double kbps) {
+            this.preset = preset;
+            this.tune = tune;
+            this.threadType = threadType;
+            this.threads = threads;
+            this.fps = fps;
+            this.kbps = kbps;
+        }
+
+        /**
+         * @return true if the bitrate is lower, or within 1% and the speed is higher
+         */
+        private boolean betterThan(AutotuneResult other) {
+            if (Math.abs(kbps - other.kbps) <= 0.01 * other.kbps) {
+                return fps > other.fps;
+            }
+            return kbps < other.kbps;
+        }
+
+        @Override
+        public String toString() {
+            return preset + "/" + ("".equals(tune) ? "none" : tune) + "/" + threadType + "/" +
+                (threads == 0 ? "auto" : threads + " threads");
+        }
+    }
+
+    private EncodeAndMuxH264 copySettings() {
+        EncodeAndMuxH264 copy = new EncodeAndMuxH264();
+        copy.fps = fps;
+        copy.bitrate = bitrate;
+        copy.width = width;
+        copy.height = height;
+        copy.gopSize = gopSize;
+        copy.maxBFrames = maxBFrames;
+        copy.nFrames = nFrames;
+        copy.profile = profile;
+        copy.ofile = ofile;
+        copy.pipeline = pipeline;
+        copy.renderers = renderers;
+        copy.packetQueueSize = packetQueueSize;
+        copy.bitexact = bitexact;
+        copy.preset = preset;
+        copy.tune = tune;
+        copy.threads = threads;
+        copy.crf = crf;
+        copy.threadType = threadType;
+        copy.swsSlices = swsSlices;
+        copy.chunkThreads = chunkThreads;
+        return copy;
+    }
+
+    /**
+     * @return encoding time in seconds
+     */
+    private double start() {
+        framePool = new FramePool("frame pool");
+        packetPool = new PacketPool("packet pool");
+        allocCodecContext();
 
         allocFrame(cc);
         allocRgbFrame(cc);
         allocSwsContext();
         allocOutputContext();
 
-        encodeVideo(pkt);
-        writeDelayedFrames();
+        long startNanos = System.nanoTime();
+        if (chunkThreads > 0) {
+            encodeVideoChunked();
+        } else
+        if (pipeline) {
+            encodeVideoPipelined();
+        } else {
+            encodeVideo();
+            long t0 = System.nanoTime();
+            writeDelayedFrames();
+            encodeNanos += System.nanoTime() - t0;
+        }
 
         av_write_trailer(oc);
         free(cc, oc);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("encoded %d frames in %.3f s: %.1f fps", nFrames, seconds, nFrames / seconds));
+        NativeMemory.print();
+        if (chunkThreads > 0 && chunkCompare) {
+            EncodeAndMuxH264 single = copySettings();
+            single.chunkThreads = 0;
+            single.ofile = ofile + ".single.mkv";
+            double singleSeconds = single.start();
+            new File(single.ofile).delete();
+            System.out.println(String.format("chunked encoding speedup over a single encoder: %.2f", singleSeconds / seconds));
+        }
+        return seconds;
     }
 
     private void writeDelayedFrames() {
         sendFrame(null);
     }
 
-    private void encodeVideo(AVPacket pkt) {
+    private void encodeVideo() {
         for (int i = 0; i < nFrames; i++) {
             frame.pts(avutil.av_rescale_q(i, codecTimebase, streamTimebase));
 
-            drawFrame(i);
+            drawFrame(i, rgbFrame, swsContext, frame);
+            long t0 = System.nanoTime();
             sendFrame(frame);
+            encodeNanos += System.nanoTime() - t0;
+        }
+    }
+
+    /**
+     * Every GOP-sized chunk of frames is rendered and encoded by its own encoder on a pool thread, so
+     * every chunk starts with a keyframe. Packets of the chunks are written in order; frame pts are
+     * global, so the timestamps of the joined stream are continuous.
+     */
+    private void encodeVideoChunked() {
+        int nChunks = (nFrames + gopSize - 1) / gopSize;
+        ExecutorService executor = Executors.newFixedThreadPool(chunkThreads);
+        List<Future<List<AVPacket>>> chunks = new ArrayList<>();
+        int written = 0;
+        try {
+            for (int c = 0; c < nChunks; c++) {
+                int first = c * gopSize;
+                int last = Math.min(nFrames, first + gopSize);
+                chunks.add(executor.submit(() -> encodeChunk(first, last)));
+            }
+            for (; written < chunks.size(); written++) {
+                writeChunk(chunks.get(written).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("chunk encoding failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (written < chunks.size()) {
+                awaitTermination(executor);
+                for (int c = written + 1; c < chunks.size(); c++) {
+                    releaseChunk(chunks.get(c));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the packets of a chunk and releases all of them, also when writing fails
+     */
+    private void writeChunk(List<AVPacket> packets) {
+        try {
+            for (AVPacket p : packets) {
+                if (writePacket(p) != 0) {
+                    throw new RuntimeException("Error while writing video frame\n");
+                }
+            }
+        } finally {
+            for (AVPacket p : packets) {
+                packetPool.release(p);
+            }
+        }
+    }
+
+    /**
+     * Releases the packets of a chunk that was encoded but will not be written
+     */
+    private void releaseChunk(Future<List<AVPacket>> chunk) {
+        if (!chunk.isDone() || chunk.isCancelled()) {
+            return;
+        }
+        try {
+            for (AVPacket p : chunk.get()) {
+                packetPool.release(p);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // a failed chunk has released its packets
+        }
+    }
+
+    /**
+     * @return packets of frames [first, last) encoded by a new encoder
+     */
+    private List<AVPacket> encodeChunk(int first, int last) {
+        // chunks already run in parallel, so every chunk encoder gets one thread unless told otherwise
+        AVCodecContext chunkCc = newCodecContext(threads > 0 ? threads : 1);
+        FrameImage rgb = null;
+        SliceScaler sws = null;
+        AVFrame yuv = null;
+        AVPacket p = null;
+        List<AVPacket> packets = new ArrayList<>();
+        boolean encoded = false;
+        try {
+            if (!extradata(chunkCc).equals(extradata(cc))) {
+                throw new RuntimeException("chunk encoder headers differ from the stream headers");
+            }
+            rgb = FrameImage.allocate(chunkCc.width(), chunkCc.height(), AV_PIX_FMT_BGR24);
+            sws = newSwsContext(1);
+            yuv = newFrame(chunkCc);
+            p = packetPool.acquire();
+
+            for (int i = first; i < last; i++) {
+                yuv.pts(avutil.av_rescale_q(i, codecTimebase, streamTimebase));
+                drawFrame(i, rgb, sws, yuv);
+                encodeTo(chunkCc, yuv, p, packets, packetPool);
+            }
+            encodeTo(chunkCc, null, p, packets, packetPool);
+            encoded = true;
+            return packets;
+        } finally {
+            if (p != null) {
+                packetPool.release(p);
+            }
+            if (yuv != null) {
+                framePool.release(yuv);
+            }
+            if (sws != null) {
+                sws.close();
+            }
+            if (rgb != null) {
+                rgb.free();
+            }
+            avcodec_free_context(chunkCc);
+            if (!encoded) {
+                for (AVPacket packet : packets) {
+                    packetPool.release(packet);
+                }
+            }
+        }
+    }
+
+    private static void encodeTo(AVCodecContext c, AVFrame f, AVPacket p, List<AVPacket> packets, PacketPool pool) {
+        long t0 = ENCODE_SEND.begin();
+        int r = avcodec.avcodec_send_frame(c, f);
+        ENCODE_SEND.end(t0);
+        if (r != 0) {
+            throw new RuntimeException("error: " + r);
+        }
+        t0 = ENCODE_RECEIVE.begin();
+        while ((r = avcodec.avcodec_receive_packet(c, p)) == 0) {
+            ENCODE_RECEIVE.end(t0);
+            packets.add(pool.ref(p));
+            av_packet_unref(p);
+            t0 = ENCODE_RECEIVE.begin();
+        }
+        ENCODE_RECEIVE.end(t0);
+        if (r != AVERROR_EAGAIN() && r != AVERROR_EOF()) {
+            throw new RuntimeException("error");
+        }
+    }
+
+    private static ByteBuffer extradata(AVCodecContext c) {
+        return c.extradata().capacity(c.extradata_size()).asByteBuffer();
+    }
+
+    /**
+     * Renderer threads draw and convert frames into a ring of yuv frames, the calling thread encodes
+     * them in order and a muxer thread writes the packets.
+     */
+    private void encodeVideoPipelined() {
+        int nRenderers = renderers > 0 ? renderers : Runtime.getRuntime().availableProcessors();
+        AVFrame[] slots = new AVFrame[2 * nRenderers + 2];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = newFrame(cc);
+        }
+        FrameRing<AVFrame> ring = new FrameRing<>(slots);
+        muxQueue = new ArrayBlockingQueue<>(packetQueueSize);
+
+        AtomicInteger nextFrame = new AtomicInteger();
+        AtomicLong renderNanos = new AtomicLong();
+        long[] muxNanos = new long[1];
+
+        ExecutorService executor = Executors.newFixedThreadPool(nRenderers + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int r = 0; r < nRenderers; r++) {
+                futures.add(executor.submit(() -> {
+                    FrameImage rgb = FrameImage.allocate(cc.width(), cc.height(), AV_PIX_FMT_BGR24);
+                    // renderers already run in parallel, one band each; bands never change the picture
+                    SliceScaler sws = newSwsContext(1);
+                    try {
+                        int n;
+                        while ((n = nextFrame.getAndIncrement()) < nFrames) {
+                            AVFrame yuv = ring.claim(n);
+                            long t0 = System.nanoTime();
+                            yuv.pts(avutil.av_rescale_q(n, codecTimebase, streamTimebase));
+                            drawFrame(n, rgb, sws, yuv);
+                            renderNanos.addAndGet(System.nanoTime() - t0);
+                            ring.publish(n);
+                        }
+                    } catch (Throwable e) {
+                        stopPipeline(ring, e);
+                        throw e;
+                    } finally {
+                        sws.close();
+                        rgb.free();
+                    }
+                    return null;
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                try {
+                    AVPacket p;
+                    while ((p = muxQueue.poll(10, TimeUnit.MILLISECONDS)) != END_OF_STREAM) {
+                        if (p == null) {
+                            checkPipeline();
+                            continue;
+                        }
+                        long t0 = System.nanoTime();
+                        int r = writePacket(p);
+                        packetPool.release(p);
+                        muxNanos[0] += System.nanoTime() - t0;
+                        if (r != 0) {
+                            throw new RuntimeException("Error while writing video frame\n");
+                        }
+                    }
+                } catch (Throwable e) {
+                    stopPipeline(ring, e);
+                    throw e;
+                }
+                return null;
+            }));
+
+            for (int i = 0; i < nFrames; i++) {
+                AVFrame yuv = ring.take(i);
+                long t0 = System.nanoTime();
+                sendFrame(yuv);
+                encodeNanos += System.nanoTime() - t0;
+                ring.release(i);
+            }
+            long t0 = System.nanoTime();
+            writeDelayedFrames();
+            encodeNanos += System.nanoTime() - t0;
+            queuePacket(END_OF_STREAM);
+
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            stopPipeline(ring, e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            stopPipeline(ring, e.getCause());
+        } catch (RuntimeException e) {
+            stopPipeline(ring, e);
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+            AVPacket p;
+            while ((p = muxQueue.poll()) != null) {
+                if (p != END_OF_STREAM) {
+                    packetPool.release(p);
+                }
+            }
+            for (AVFrame slot : slots) {
+                framePool.release(slot);
+            }
+        }
+        Throwable failure = pipelineFailure.get();
+        if (failure != null) {
+            throw new RuntimeException("pipeline stage failed", failure);
+        }
+
+        printStageStats("render", nRenderers, renderNanos.get());
+        printStageStats("encode", 1, encodeNanos);
+        printStageStats("mux", 1, muxNanos[0]);
+    }
+
+    /**
+     * Records the first failure of a pipeline stage and wakes up the stages waiting on the ring
+     */
+    private void stopPipeline(FrameRing<AVFrame> ring, Throwable e) {
+        pipelineFailure.compareAndSet(null, e);
+        ring.abort(e);
+    }
+
+    private void checkPipeline() {
+        Throwable failure = pipelineFailure.get();
+        if (failure != null) {
+            throw new RuntimeException("pipeline stopped", failure);
         }
     }
 
+    /**
+     * Waits for the pipeline threads to return, they stop waiting once interrupted
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                System.err.println("waiting for pipeline stages to stop");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Passes the packet to the muxer thread, giving up when another stage has failed
+     */
+    private void queuePacket(AVPacket p) {
+        try {
+            while (!muxQueue.offer(p, 10, TimeUnit.MILLISECONDS)) {
+                checkPipeline();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted", e);
+        }
+    }
+
+    private void printStageStats(String stage, int threads, long busyNanos) {
+        System.out.println(String.format("%s: %d thread(s), busy %.3f s, %.1f fps",
+                stage, threads, busyNanos / 1e9, nFrames / (busyNanos / 1e9 / threads)));
+    }
+
     private void sendFrame(AVFrame o) {
+        long t0 = ENCODE_SEND.begin();
         int r = avcodec.avcodec_send_frame(cc, o);
+        ENCODE_SEND.end(t0);
         if (r == 0) {
             receivePacket();
         } else {
@@ -123,25 +794,28 @@ public final class EncodeAndMuxH264 {
         }
     }
 
-    private void drawFrame(int n) {
+    private void drawFrame(int n, FrameImage rgbFrame, SliceScaler swsContext, AVFrame frame) {
+        if (av_frame_make_writable(frame) < 0) {
+            throw new RuntimeException("Could not make the video frame writable");
+        }
+        long t0 = RENDER.begin();
+        BufferedImage image = rgbFrame.image();
         Graphics gc = image.getGraphics();
         gc.clearRect(0, 0, image.getWidth(), image.getHeight());
         gc.setFont(gc.getFont().deriveFont(50f));
         gc.drawString(String.format("pts: %d", n), 200, 200);
         gc.dispose();
+        rgbFrame.toFrame();
+        RENDER.end(t0);
 
-        DataBufferByte dataBufferByte = (DataBufferByte) image.getRaster().getDataBuffer();
-        rgbFrame.data(0).put(dataBufferByte.getData());
-
-        swscale.sws_scale(
-            swsContext, rgbFrame.data(), rgbFrame.linesize(), 0,
-            frame.height(), frame.data(), frame.linesize()
-        );
+        t0 = CONVERT.begin();
+        swsContext.scale(rgbFrame.frame(), frame);
+        CONVERT.end(t0);
     }
 
     private void allocOutputContext() {
         oc = new AVFormatContext();
-        pkt = new AVPacket();
+        pkt = av_packet_alloc();
         int r = avformat_alloc_output_context2(oc, null, null, ofile);
         if (r < 0) {
             throw new RuntimeException("could not allocate output context");
@@ -152,16 +826,27 @@ public final class EncodeAndMuxH264 {
         st.time_base(cc.time_base());
 
         av_dump_format(oc, 0, ofile, 1);
+        if (bitexact) {
+            av_opt_set(oc, "fflags", "+bitexact", 0);
+        }
 
-        /* open the output file, if needed */
-        PointerPointer pp = new PointerPointer(1);
-        try {
-            if (avio_open(pp, new BytePointer(ofile), AVIO_FLAG_WRITE) <0){
-                throw new RuntimeException("Could not open " + fmt);
+        if (live) {
+            // options of the Matroska and mp4 muxers, the other one fails harmlessly
+            av_opt_set(oc.priv_data(), "live", "1", 0);
+            av_opt_set(oc.priv_data(), "movflags", "frag_keyframe+empty_moov+default_base_moof", 0);
+        }
+
+        if (channel != null) {
+            outputChannel = openChannel();
+            channelOutput = new ChannelOutput(outputChannel, ioBufferSize, ioBuffers);
+            oc.pb(channelOutput.avio());
+        } else {
+            /* open the output file, if needed */
+            AVIOContext pb = new AVIOContext(null);
+            if (avio_open(pb, ofile, AVIO_FLAG_WRITE) < 0) {
+                throw new RuntimeException("Could not open " + ofile);
             }
-            oc.pb(new AVIOContext(pp.get()));
-        } finally {
-            pp.deallocate();
+            oc.pb(pb);
         }
 
         /* Write the stream header, if any. */
@@ -177,9 +862,17 @@ public final class EncodeAndMuxH264 {
         codecTimebase.num(1);
         codecTimebase.den(fps);
         codec = avcodec_find_encoder(AV_CODEC_ID_H264);
-        cc = avcodec_alloc_context3(codec);
+        cc = newCodecContext(threads);
+    }
+
+    private AVCodecContext newCodecContext(int threads) {
+        AVCodecContext cc = avcodec_alloc_context3(codec);
 
-        cc.bit_rate(bitrate);
+        if (crf > 0) {
+            av_opt_set(cc.priv_data(), "crf", String.valueOf(crf), 0);
+        } else {
+            cc.bit_rate(bitrate);
+        }
         cc.width(width);
         cc.height(height);
         cc.time_base(codecTimebase);
@@ -188,69 +881,150 @@ public final class EncodeAndMuxH264 {
         if (profile != null && !"".equals(profile)) {
             av_opt_set(cc.priv_data(), "profile", profile, 0);
         }
+        av_opt_set(cc.priv_data(), "preset", preset, 0);
+        if (!"".equals(tune)) {
+            av_opt_set(cc.priv_data(), "tune", tune, 0);
+        }
+        cc.thread_count(threads);
+        switch (threadType) {
+            case "frame":
+                cc.thread_type(FF_THREAD_FRAME);
+                break;
+            case "slice":
+                cc.thread_type(FF_THREAD_SLICE);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown thread type: " + threadType);
+        }
 
         cc.pix_fmt(avutil.AV_PIX_FMT_YUV420P);
         cc.flags(cc.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
         if (avcodec_open2(cc, codec, (AVDictionary) null) < 0) {
             throw new RuntimeException("could not open codec");
         }
+        return cc;
     }
 
     private void free(AVCodecContext cc, AVFormatContext oc) {
         avcodec_close(cc);
         avcodec_free_context(cc);
-        av_free(rgbFrame.data(0));
-        av_free(frame.data(0));
-        av_free(rgbFrame);
-        av_free(frame);
+        rgbFrame.free();
+        swsContext.close();
+        framePool.release(frame);
+        av_packet_free(pkt);
+        framePool.print();
+        packetPool.print();
+        framePool.close();
+        packetPool.close();
 
-        avio_close(oc.pb());
-        av_free(oc);
+        if (channelOutput != null) {
+            try {
+                channelOutput.close();
+                outputChannel.close();
+            } catch (IOException e) {
+                throw new RuntimeException("could not write output", e);
+            }
+            System.out.println(String.format("channel output: %d bytes in %d writes, %d stalls, %d live flushes",
+                    channelOutput.bytes(), channelOutput.writes(), channelOutput.stalls(), liveFlushes));
+        } else {
+            avio_closep(oc.pb());
+        }
+        avformat_free_context(oc);
     }
 
-    private void allocSwsContext() {
-        swsContext = sws_getContext(rgbFrame.width(), rgbFrame.height(), rgbFrame.format(),
-                frame.width(), frame.height(), frame.format(), SWS_BICUBIC,
-                null, null, (DoublePointer) null);
-
-        if (swsContext.isNull()) {
-            throw new RuntimeException("Could not init sws context!");
+    private WritableByteChannel openChannel() {
+        try {
+            if ("file".equals(channel)) {
+                return FileChannel.open(Paths.get(ofile),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            int colon = channel.lastIndexOf(':');
+            return SocketChannel.open(new InetSocketAddress(channel.substring(0, colon),
+                    Integer.parseInt(channel.substring(colon + 1))));
+        } catch (IOException e) {
+            throw new RuntimeException("could not open channel " + channel, e);
         }
     }
 
-    private void allocRgbFrame(AVCodecContext cc) {
-        image = new BufferedImage(cc.width(), cc.height(), BufferedImage.TYPE_3BYTE_BGR);
+    /**
+     * Writes packet to the muxer. In live mode the container is flushed before every keyframe but
+     * the first, which closes the Matroska cluster or mp4 fragment of the previous GOP.
+     */
+    private int writePacket(AVPacket p) {
+        long t0 = MUX_WRITE.begin();
+        try {
+            return writeToMuxer(p);
+        } finally {
+            MUX_WRITE.end(t0);
+        }
+    }
 
-        rgbFrame = av_frame_alloc();
-        rgbFrame.format(AV_PIX_FMT_BGR24);
-        rgbFrame.width(cc.width());
-        rgbFrame.height(cc.height());
-        int ret = av_frame_get_buffer(rgbFrame, 32);
-        if (ret < 0) {
-            throw new RuntimeException("Could not allocate the video frame data");
+    private int writeToMuxer(AVPacket p) {
+        if (live && (p.flags() & AV_PKT_FLAG_KEY) != 0) {
+            if (keyframeWritten) {
+                int r = av_write_frame(oc, null);
+                if (r < 0) {
+                    return r;
+                }
+                avio_flush(oc.pb());
+                ++liveFlushes;
+            }
+            keyframeWritten = true;
         }
+        return av_interleaved_write_frame(oc, p);
+    }
+
+    private void allocSwsContext() {
+        swsContext = newSwsContext(swsSlices);
+    }
+
+    /**
+     * Converter of the rendered BGR24 frames. SliceScaler converts the vertically subsampled encoder
+     * format in one call whatever the band count, so the serial, pipelined and chunked paths convert
+     * every frame to the same picture.
+     */
+    private SliceScaler newSwsContext(int slices) {
+        return new SliceScaler(cc.width(), cc.height(), AV_PIX_FMT_BGR24,
+                cc.width(), cc.height(), cc.pix_fmt(), SWS_BICUBIC, slices);
+    }
+
+    private void allocRgbFrame(AVCodecContext cc) {
+        rgbFrame = FrameImage.allocate(cc.width(), cc.height(), AV_PIX_FMT_BGR24);
     }
 
     private void allocFrame(AVCodecContext cc) {
-        frame = av_frame_alloc();
-        frame.format(cc.pix_fmt());
-        frame.width(cc.width());
-        frame.height(cc.height());
-        int ret = av_frame_get_buffer(frame, 32);
-        if (ret < 0) {
-            throw new RuntimeException("Could not allocate the video frame data");
-        }
+        frame = newFrame(cc);
+    }
+
+    private AVFrame newFrame(AVCodecContext cc) {
+        return framePool.acquire(cc.pix_fmt(), cc.width(), cc.height());
     }
 
     private void receivePacket() {
         int r;
+        long t0 = ENCODE_RECEIVE.begin();
         while ((r = avcodec.avcodec_receive_packet(cc, pkt)) == 0) {
-            r = av_interleaved_write_frame(oc, pkt);
+            ENCODE_RECEIVE.end(t0);
+            if (muxQueue != null) {
+                AVPacket ref = packetPool.ref(pkt);
+                av_packet_unref(pkt);
+                try {
+                    queuePacket(ref);
+                } catch (RuntimeException e) {
+                    packetPool.release(ref);
+                    throw e;
+                }
+                t0 = ENCODE_RECEIVE.begin();
+                continue;
+            }
+            r = writePacket(pkt);
             av_packet_unref(pkt);
             if (r != 0) {
                 throw new RuntimeException("Error while writing video frame\n");
             }
+            t0 = ENCODE_RECEIVE.begin();
         }
+        ENCODE_RECEIVE.end(t0);
 
         if (r != AVERROR_EAGAIN() && r != AVERROR_EOF()) {
             throw new RuntimeException("error");
@@ -1,18 +1,38 @@
 import org.apache.commons.cli.*;
 import org.bytedeco.javacpp.*;
+import util.CaptureEngine;
+import util.DirtyTiles;
+import util.FrameDisplay;
+import util.FramePool;
+import util.LatencyHistogram;
+import util.NativeMemory;
+import util.PacketPool;
+import util.Probe;
+import util.Probes;
+import util.SliceScaler;
 
 import javax.swing.*;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static java.lang.String.format;
-import static org.bytedeco.javacpp.avcodec.av_packet_unref;
-import static org.bytedeco.javacpp.avdevice.avdevice_register_all;
+import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avformat.*;
 import static org.bytedeco.javacpp.avutil.*;
-import static org.bytedeco.javacpp.swscale.sws_freeContext;
-import static org.bytedeco.javacpp.swscale.sws_getContext;
+import static org.bytedeco.javacpp.swscale.*;
 
 public final class GrabScreen {
     /** upper left corner coordinates */
@@ -23,20 +43,108 @@ public final class GrabScreen {
     private static final String DEFAULT_WIDTH = "640";
     private static final String DEFAULT_HEIGHT = "480";
 
+    private static final String DEFAULT_SWS_SLICES = "0";
+    private static final String DEFAULT_FPS = "30";
+    private static final String DEFAULT_BITRATE = "2000000";
+    private static final String DEFAULT_GOP = "60";
+    private static final String DEFAULT_PRESET = "veryfast";
+    private static final String DEFAULT_DURATION = "10";
+    private static final String DEFAULT_QUEUE = "8";
+    private static final String DEFAULT_POLICY = "drop_oldest";
+    private static final String DEFAULT_TILE = "64";
+
+    /** stages of the preview and recording pipelines, see {@link Probes} */
+    private static final Probe CAPTURE = Probes.get("capture");
+    private static final Probe DETECT = Probes.get("detect");
+    private static final Probe CONVERT = Probes.get("convert");
+    private static final Probe ENCODE_SEND = Probes.get("encode.send");
+    private static final Probe ENCODE_RECEIVE = Probes.get("encode.receive");
+    private static final Probe MUX_WRITE = Probes.get("mux.write");
+
+    /** captured packets kept for the preview */
+    private static final int PREVIEW_RING = 4;
+
+    /** marks the end of captured packets and converted frames */
+    private static final AVPacket END_OF_CAPTURE = new AVPacket((Pointer) null);
+    private static final AVFrame END_OF_FRAMES = new AVFrame((Pointer) null);
+
     private int width;
     private int height;
     private int x;
     private int y;
     private String display;
 
-    private AVInputFormat x11grab;
-    private AVFormatContext x11GrabDevice;
-    private avcodec.AVPacket pkt;
-    private BufferedImage bufferedImage;
-    private AVFrame rgbFrame;
-    private swscale.SwsContext swsContext;
+    /** raw bgr0 file of the region size replayed instead of grabbing the screen, null to grab */
+    private String replayFile;
+
+    /** number of bands converted in parallel, 0 means one per available core */
+    private int swsSlices;
+
+    /** capture frame rate */
+    private int fps;
+
+    /** h264/mkv file to record to without a preview window, null to show the preview */
+    private String recordFile;
+
+    private int bitrate;
+    private int gopSize;
+    private String preset;
+
+    /** recording length in seconds, 0 to record until interrupted */
+    private int duration;
+
+    /** capacity of the queues between capture, conversion and encoding */
+    private int queueSize;
+
+    /** what a stage does when the queue to the next stage is full */
+    private OverloadPolicy policy;
+
+    /** size of change detection tiles of the preview, 0 converts and repaints every frame */
+    private int tileSize;
+
+    /** tile converters by tile width and height */
+    private final Map<Long, SwsContext> tileContexts = new HashMap<>();
+
+    /** thread CPU time and number of preview frames with and without changes */
+    private long changedCpuNanos;
+    private long staticCpuNanos;
+    private long changedFrames;
+    private long staticFrames;
+    private long dirtyTileCount;
+
+    /** recording is stopped by the shutdown hook */
+    private volatile boolean stopped;
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong droppedCaptured = new AtomicLong();
+    private final AtomicLong droppedConverted = new AtomicLong();
+    private final AtomicLong encoded = new AtomicLong();
+
+    /** capacity of the capture time ring, more than the frames between capture and encoded packet */
+    private static final int CAPTURE_RING = 1024;
+
+    /**
+     * Capture time and pts of the last captured frames, in a ring indexed by capture sequence number.
+     * The slot of a frame is written before the frame is queued, so the encoder thread sees it.
+     */
+    private final long[] captureNanos = new long[CAPTURE_RING];
+    private final long[] capturePts = new long[CAPTURE_RING];
+
+    /** capture-to-packet latencies, written by the encoder thread */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /** first failure of a recording stage, the other stages stop once it is set */
+    private final AtomicReference<Throwable> recordingFailure = new AtomicReference<>();
+
+    private CaptureEngine engine;
+    private FrameDisplay frameDisplay;
+    private SliceScaler swsContext;
     private IntPointer bgr0Linesize;
 
+    /** source and destination planes of {@link #convertTile}, reused for every tile */
+    private final PointerPointer<Pointer> tileSrc = new PointerPointer<>(1);
+    private final PointerPointer<Pointer> tileDst = new PointerPointer<>(1);
+
     private GrabScreen() {}
 
     public static void main(String... argv) throws ParseException {
@@ -49,11 +157,23 @@ public final class GrabScreen {
         options.addOption("x", true, "x");
         options.addOption("y", true, "y");
         options.addOption("display", true, "display");
+        options.addOption("replay", true, "replay a raw bgr0 file of the region size instead of the screen");
+        options.addOption("sws_slices", true, "number of bands converted in parallel, 0 for one per core");
+        options.addOption("fps", true, "capture frame rate");
+        options.addOption("record", true, "record to h264/mkv file without a preview window");
+        options.addOption("bitrate", true, "bitrate of the recording");
+        options.addOption("gop", true, "gop size of the recording");
+        options.addOption("preset", true, "x264 preset of the recording");
+        options.addOption("duration", true, "recording length in seconds, 0 to record until interrupted");
+        options.addOption("queue", true, "capacity of the capture and conversion queues");
+        options.addOption("policy", true, "full queue policy: drop_oldest, drop_newest or block");
+        options.addOption("tile", true, "preview change detection tile size, 0 to convert every frame");
+        options.addOption("probes", true, "time pipeline stages, export them over JMX and write them as JSON to the file at exit");
 
         CommandLine cmd = new DefaultParser().parse(options, argv);
         if (cmd.hasOption("help")) {
             HelpFormatter helpFormatter = new HelpFormatter();
-            helpFormatter.printHelp("EncodeAndMuxH264 [options]", options);
+            helpFormatter.printHelp("GrabScreen [options]", options);
         } else {
             System.out.println("options:");
             GrabScreen instance = new GrabScreen();
@@ -62,12 +182,29 @@ public final class GrabScreen {
             instance.x = Integer.parseInt(getOption(cmd,"x", DEFAULT_X));
             instance.y = Integer.parseInt(getOption(cmd,"y", DEFAULT_Y));
             instance.display = getOption(cmd, "display", System.getenv("DISPLAY"));
+            instance.replayFile = getOption(cmd, "replay", null);
+            instance.swsSlices = Integer.parseInt(getOption(cmd, "sws_slices", DEFAULT_SWS_SLICES));
+            instance.fps = Integer.parseInt(getOption(cmd, "fps", DEFAULT_FPS));
+            instance.recordFile = getOption(cmd, "record", null);
+            instance.bitrate = Integer.parseInt(getOption(cmd, "bitrate", DEFAULT_BITRATE));
+            instance.gopSize = Integer.parseInt(getOption(cmd, "gop", DEFAULT_GOP));
+            instance.preset = getOption(cmd, "preset", DEFAULT_PRESET);
+            instance.duration = Integer.parseInt(getOption(cmd, "duration", DEFAULT_DURATION));
+            instance.queueSize = Integer.parseInt(getOption(cmd, "queue", DEFAULT_QUEUE));
+            instance.policy = OverloadPolicy.valueOf(getOption(cmd, "policy", DEFAULT_POLICY).toUpperCase());
+            instance.tileSize = Integer.parseInt(getOption(cmd, "tile", DEFAULT_TILE));
+            String probes = getOption(cmd, "probes", null);
+            if (probes != null) {
+                Probes.enable();
+                Probes.dumpAtExit(new File(probes));
+            }
 
-            instance.start();
+            if (instance.recordFile != null) {
+                instance.record();
+            } else {
+                instance.start();
+            }
         }
-
-        GrabScreen instance = new GrabScreen();
-        instance.start();
     }
 
     private static String getOption(CommandLine cmd, String key, String defaultValue) {
@@ -76,99 +213,530 @@ public final class GrabScreen {
         return v;
     }
 
-    private void setupX11GrabDevice() {
-        avdevice_register_all();
-        x11grab = av_find_input_format("x11grab");
-        if (x11grab == null) {
-            throw new RuntimeException("x11grab not found");
-        }
-        x11GrabDevice = avformat_alloc_context();
-        if (x11GrabDevice == null) {
-            throw new RuntimeException("x11grab device not found");
-        }
-
-        String url = format("%s.0+%d,%d", display, x, y);
-        AVDictionary options = new AVDictionary();
-        av_dict_set(options, "video_size", format("%dx%d", width, height), 0);
-        if(avformat_open_input(x11GrabDevice, url, x11grab, options) != 0) {
-            throw new RuntimeException("Couldn't open input stream.\n");
+    /**
+     * Opens the screen region, or the replayed file, on a capture engine
+     *
+     * @param ringSize number of captured packets the engine keeps
+     */
+    private void openCapture(int ringSize) {
+        CaptureEngine.Source source;
+        if (replayFile == null) {
+            source = CaptureEngine.Source.x11grab(display, x, y, width, height, fps);
+        } else {
+            source = CaptureEngine.Source.file(replayFile, "rawvideo", true)
+                .option("video_size", format("%dx%d", width, height))
+                .option("pixel_format", "bgr0")
+                .option("framerate", String.valueOf(fps));
         }
-        av_dict_free(options);
-
-        av_dump_format(x11GrabDevice, 0, url, 0);
-        if (x11GrabDevice.nb_streams() == 0) {
-            throw new RuntimeException("Stream not found!");
+        engine = new CaptureEngine(source, ringSize);
+        try {
+            engine.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
         }
-        int pixFormat = x11GrabDevice.streams(0).codecpar().format();
+        int pixFormat = engine.stream().codecpar().format();
         if (pixFormat != AV_PIX_FMT_BGR0) {
             throw new RuntimeException("unsupported pixel format: " + pixFormat);
         }
-        pkt = new avcodec.AVPacket();
     }
 
     private void start() {
-        setupX11GrabDevice();
-        allocRGB24Frame();
+        openCapture(PREVIEW_RING);
         allocSWSContext();
 
         JFrame frame = setupJFrame();
         PointerPointer<Pointer> pktDataPointer = new PointerPointer<>(1);
+        DirtyTiles tiles = tileSize > 0 ? new DirtyTiles(width, height, 4, tileSize) : null;
+        List<Rectangle> wholePicture = Collections.singletonList(new Rectangle(0, 0, width, height));
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        // the preview never holds capture back, it skips packets it is too slow for
+        CaptureEngine.Subscription preview = engine.subscribe("preview", true);
+        engine.start();
         while (frame.isShowing()) {
-            av_read_frame(x11GrabDevice, pkt);
-            pktDataPointer.put(pkt.data());
-
-            swscale.sws_scale(
-                swsContext, pktDataPointer, bgr0Linesize, 0,
-                rgbFrame.height(), rgbFrame.data(), rgbFrame.linesize()
-            );
-
-            DataBufferByte buffer = (DataBufferByte) bufferedImage.getRaster().getDataBuffer();
-            rgbFrame.data(0).get(buffer.getData());
-            av_packet_unref(pkt);
+            AVPacket pkt = nextPacket(preview);
+            if (pkt == null) {
+                break;
+            }
+            long cpu0 = threadBean.getCurrentThreadCpuTime();
+            FrameDisplay.Frame rgb = frameDisplay.acquire();
+            if (tiles == null) {
+                long t0 = CONVERT.begin();
+                pktDataPointer.put(pkt.data());
+                swsContext.scale(pktDataPointer, bgr0Linesize, rgb.image().frame().data(), rgb.image().frame().linesize());
+                CONVERT.end(t0);
+                frameDisplay.publish(rgb, wholePicture);
+            } else
+            if (detectChanges(tiles, pkt) > 0) {
+                dirtyTileCount += tiles.dirtyCount();
+                List<Rectangle> changed = tiles.dirtyRuns();
+                long t0 = CONVERT.begin();
+                // the pooled frame also misses the changes published while it was presented
+                for (Rectangle r : rgb.stale()) {
+                    convertTile(pkt, r, rgb.image().frame());
+                }
+                for (Rectangle r : changed) {
+                    convertTile(pkt, r, rgb.image().frame());
+                }
+                CONVERT.end(t0);
+                frameDisplay.publish(rgb, changed);
+            } else {
+                frameDisplay.release(rgb);
+            }
+            preview.release();
 
-            frame.repaint();
+            long cpu = threadBean.getCurrentThreadCpuTime() - cpu0;
+            if (tiles != null && tiles.dirtyCount() == 0) {
+                staticCpuNanos += cpu;
+                ++staticFrames;
+            } else {
+                changedCpuNanos += cpu;
+                ++changedFrames;
+            }
         }
         pktDataPointer.deallocate();
+        printPreviewStats(tiles);
+        System.out.printf("preview skipped %d of %d captured packets%n", preview.dropped(), engine.packets());
 
-        av_frame_free(rgbFrame);
-        avformat_close_input(x11GrabDevice);
-        sws_freeContext(swsContext);
+        frameDisplay.stop();
+        preview.close();
+        engine.close();
+        swsContext.close();
+        for (SwsContext ctx : tileContexts.values()) {
+            sws_freeContext(ctx);
+        }
 
         frame.dispose();
         System.exit(0);
     }
 
+    /**
+     * @return number of tiles of the captured picture changed since the previous one
+     */
+    private int detectChanges(DirtyTiles tiles, AVPacket pkt) {
+        long t0 = DETECT.begin();
+        int dirty = tiles.update(pkt.data().capacity(pkt.size()).asByteBuffer(), 4 * width);
+        DETECT.end(t0);
+        return dirty;
+    }
+
+    /**
+     * Converts one rectangle of the captured picture in place of the whole picture
+     */
+    private void convertTile(AVPacket pkt, Rectangle r, AVFrame rgb) {
+        SwsContext ctx = tileContexts.computeIfAbsent(((long) r.width << 32) | r.height, k ->
+                sws_getContext(r.width, r.height, AV_PIX_FMT_BGR0,
+                        r.width, r.height, AV_PIX_FMT_BGR24, 0, null, null, (DoublePointer) null));
+        tileSrc.put(0, pkt.data().position((long) r.y * bgr0Linesize.get() + 4L * r.x));
+        tileDst.put(0, rgb.data(0).position((long) r.y * rgb.linesize(0) + 3L * r.x));
+        sws_scale(ctx, tileSrc, bgr0Linesize, 0, r.height, tileDst, rgb.linesize());
+    }
+
+    private void printPreviewStats(DirtyTiles tiles) {
+        System.out.println(format("frames with changes: %d, %.3f ms CPU per frame", changedFrames,
+                changedFrames == 0 ? 0 : changedCpuNanos / 1e6 / changedFrames));
+        if (tiles != null) {
+            System.out.println(format("frames without changes: %d, %.3f ms CPU per frame", staticFrames,
+                    staticFrames == 0 ? 0 : staticCpuNanos / 1e6 / staticFrames));
+            System.out.println(format("changed tiles per changed frame: %.1f of %d", changedFrames == 0 ? 0 :
+                    (double) dirtyTileCount / changedFrames, tiles.columns() * tiles.rows()));
+        }
+        System.out.println(format("display: %d frames published, %d presented, %d skipped, %d periods without a new frame",
+                frameDisplay.published(), frameDisplay.presented(), frameDisplay.skipped(), frameDisplay.idlePeriods()));
+    }
+
+    /**
+     * Frames are presented by the display at the capture frame rate, the window itself never repaints
+     */
     private JFrame setupJFrame() {
-        this.bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        JFrame frame = new JFrame() {
-            @Override
-            public void paint(Graphics g) {
-                g.drawImage(bufferedImage, 0, 0, null);
-            }
-        };
+        frameDisplay = new FrameDisplay(width, height, fps);
+        JFrame frame = new JFrame();
         frame.setTitle("grab screen");
-        frame.setSize(width, height);
+        frame.setIgnoreRepaint(true);
+        frame.add(frameDisplay);
+        frame.pack();
         frame.setVisible(true);
+        frameDisplay.start();
         return frame;
     }
 
-    private void allocRGB24Frame() {
-        rgbFrame = av_frame_alloc();
-        rgbFrame.format(AV_PIX_FMT_BGR24);
-        rgbFrame.width(width);
-        rgbFrame.height(height);
-        int ret = av_frame_get_buffer(rgbFrame, 32);
-        if (ret < 0) {
-            throw new RuntimeException("Could not allocate the video frame data");
-        }
+    private void allocSWSContext() {
+        bgr0Linesize = new IntPointer(1);
+        bgr0Linesize.put(4 * width);
+        swsContext = new SliceScaler(width, height, AV_PIX_FMT_BGR0,
+            width, height, AV_PIX_FMT_BGR24, 0, swsSlices);
     }
 
-    private void allocSWSContext() {
+    /**
+     * Records the screen region without a preview window. Capture, conversion and encoding run on
+     * their own threads joined by bounded queues; a stage that finds the next queue full drops the
+     * oldest or the newest item or waits, depending on the overload policy.
+     */
+    private void record() {
+        openCapture(queueSize);
+        AVRational timebase = engine.stream().time_base();
+        SliceScaler converter = new SliceScaler(width, height, AV_PIX_FMT_BGR0,
+                width, height, AV_PIX_FMT_YUV420P, 0, swsSlices);
         bgr0Linesize = new IntPointer(1);
         bgr0Linesize.put(4 * width);
-        swsContext =
-            sws_getContext(width, height, AV_PIX_FMT_BGR0,
-            width, height, rgbFrame.format(), 0,
-                null, null, (DoublePointer) null);
+
+        AVCodecContext cc = openEncoder(timebase);
+        AVFormatContext oc = openOutput(cc);
+        AVStream outStream = oc.streams(0);
+        Arrays.fill(capturePts, AV_NOPTS_VALUE());
+
+        // frames held by the queue, the converter and the encoder
+        FramePool framePool = new FramePool("frame pool");
+        PacketPool packetPool = new PacketPool("packet pool");
+        BlockingQueue<AVFrame> freeFrames = new ArrayBlockingQueue<>(queueSize + 2);
+        for (int i = 0; i < queueSize + 2; i++) {
+            freeFrames.add(framePool.acquire(cc.pix_fmt(), cc.width(), cc.height()));
+        }
+        BlockingQueue<AVPacket> captureQueue = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<AVFrame> frameQueue = new ArrayBlockingQueue<>(queueSize);
+        Consumer<AVPacket> dropPacket = p -> {
+            droppedCaptured.incrementAndGet();
+            packetPool.release(p);
+        };
+        Consumer<AVFrame> dropFrame = f -> {
+            droppedConverted.incrementAndGet();
+            freeFrames.add(f);
+        };
+
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(() -> {
+            stopped = true;
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CaptureEngine.Subscription recorder = null;
+        try {
+            Future<?> converterTask = executor.submit(() -> {
+                PointerPointer<Pointer> pktDataPointer = new PointerPointer<>(1);
+                try {
+                    AVPacket p;
+                    while ((p = take(captureQueue)) != END_OF_CAPTURE) {
+                        AVFrame yuv = take(freeFrames);
+                        if (av_frame_make_writable(yuv) < 0) {
+                            freeFrames.add(yuv);
+                            packetPool.release(p);
+                            throw new RuntimeException("Could not make the video frame writable");
+                        }
+                        long t0 = CONVERT.begin();
+                        pktDataPointer.put(p.data());
+                        converter.scale(pktDataPointer, bgr0Linesize, yuv.data(), yuv.linesize());
+                        CONVERT.end(t0);
+                        yuv.pts(p.pts());
+                        packetPool.release(p);
+                        offer(frameQueue, yuv, dropFrame);
+                    }
+                    put(frameQueue, END_OF_FRAMES);
+                } catch (Throwable e) {
+                    recordingFailure.compareAndSet(null, e);
+                    throw e;
+                } finally {
+                    pktDataPointer.deallocate();
+                }
+                return null;
+            });
+            Future<?> encoderTask = executor.submit(() -> {
+                AVPacket out = av_packet_alloc();
+                try {
+                    AVFrame yuv;
+                    while ((yuv = take(frameQueue)) != END_OF_FRAMES) {
+                        try {
+                            encode(cc, yuv, out, oc, outStream);
+                        } finally {
+                            freeFrames.add(yuv);
+                        }
+                    }
+                    encode(cc, null, out, oc, outStream);
+                } catch (Throwable e) {
+                    recordingFailure.compareAndSet(null, e);
+                    throw e;
+                } finally {
+                    av_packet_free(out);
+                }
+                return null;
+            });
+
+            // the recorder is not lossy, the overload policy decides what to drop
+            recorder = engine.subscribe("recorder", false);
+            engine.start();
+            long firstPts = AV_NOPTS_VALUE();
+            long endNanos = System.nanoTime() + duration * 1_000_000_000L;
+            while (!stopped && (duration == 0 || System.nanoTime() < endNanos) &&
+                    !converterTask.isDone() && !encoderTask.isDone()) {
+                AVPacket captured = nextPacket(recorder);
+                if (captured == null) {
+                    break;
+                }
+                // a new reference to the captured picture, the engine reuses its packet
+                AVPacket p = packetPool.ref(captured);
+                long captureNanos = System.nanoTime();
+                if (firstPts == AV_NOPTS_VALUE()) {
+                    firstPts = p.pts();
+                }
+                p.pts(p.pts() - firstPts);
+                p.dts(p.pts());
+                int slot = (int) (this.captured.incrementAndGet() % CAPTURE_RING);
+                this.captureNanos[slot] = captureNanos;
+                capturePts[slot] = p.pts();
+                offer(captureQueue, p, dropPacket);
+            }
+            put(captureQueue, END_OF_CAPTURE);
+            converterTask.get();
+            encoderTask.get();
+
+            av_write_trailer(oc);
+            printRecordingStats();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable failure = recordingFailure.get();
+            throw new RuntimeException("recording failed", failure != null ? failure : e.getCause());
+        } catch (RuntimeException e) {
+            Throwable failure = recordingFailure.get();
+            throw failure != null ? new RuntimeException("recording failed", failure) : e;
+        } finally {
+            executor.shutdownNow();
+            try {
+                awaitTermination(executor);
+                AVPacket p;
+                while ((p = captureQueue.poll()) != null) {
+                    if (p != END_OF_CAPTURE) {
+                        packetPool.release(p);
+                    }
+                }
+                AVFrame f;
+                while ((f = frameQueue.poll()) != null) {
+                    if (f != END_OF_FRAMES) {
+                        framePool.release(f);
+                    }
+                }
+                while ((f = freeFrames.poll()) != null) {
+                    framePool.release(f);
+                }
+                framePool.print();
+                packetPool.print();
+                framePool.close();
+                packetPool.close();
+                converter.close();
+                avcodec_free_context(cc);
+                avio_closep(oc.pb());
+                avformat_free_context(oc);
+                if (recorder != null) {
+                    recorder.close();
+                }
+                engine.close();
+                NativeMemory.print();
+            } finally {
+                finished.countDown();
+                if (!stopped) {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the next item, giving up when another recording stage has failed
+     */
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T item;
+        while ((item = queue.poll(10, TimeUnit.MILLISECONDS)) == null) {
+            checkRecording();
+        }
+        return item;
+    }
+
+    /**
+     * Waits for room in the queue, giving up when another recording stage has failed
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while (!queue.offer(item, 10, TimeUnit.MILLISECONDS)) {
+            checkRecording();
+        }
+    }
+
+    private void checkRecording() {
+        Throwable failure = recordingFailure.get();
+        if (failure != null) {
+            throw new RuntimeException("recording stopped", failure);
+        }
+    }
+
+    /**
+     * Waits for the recording stages to return, they stop waiting once interrupted
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+                System.err.println("waiting for recording stages to stop");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return next packet of the subscription, null at the end of a replayed file; the wait is the capture stage
+     */
+    private static AVPacket nextPacket(CaptureEngine.Subscription subscription) {
+        long t0 = CAPTURE.begin();
+        try {
+            return subscription.next();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted", e);
+        } finally {
+            CAPTURE.end(t0);
+        }
+    }
+
+    /**
+     * Queues the item according to the overload policy, dropped items are passed to the drop handler
+     */
+    private <T> void offer(BlockingQueue<T> queue, T item, Consumer<T> drop) throws InterruptedException {
+        switch (policy) {
+            case BLOCK:
+                put(queue, item);
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(item)) {
+                    drop.accept(item);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(item)) {
+                    T oldest = queue.poll();
+                    if (oldest != null) {
+                        drop.accept(oldest);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * The encoder keeps the capture time base, so timestamps of the recording follow the wall clock
+     * even when frames are dropped
+     */
+    private AVCodecContext openEncoder(AVRational timebase) {
+        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_H264);
+        AVCodecContext cc = avcodec_alloc_context3(codec);
+        cc.bit_rate(bitrate);
+        cc.width(width);
+        cc.height(height);
+        cc.time_base(timebase);
+        AVRational frameRate = new AVRational();
+        frameRate.num(fps);
+        frameRate.den(1);
+        cc.framerate(frameRate);
+        cc.gop_size(gopSize);
+        cc.max_b_frames(0);
+        av_opt_set(cc.priv_data(), "preset", preset, 0);
+        cc.pix_fmt(AV_PIX_FMT_YUV420P);
+        cc.flags(cc.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+        if (avcodec_open2(cc, codec, (AVDictionary) null) < 0) {
+            throw new RuntimeException("could not open codec");
+        }
+        return cc;
+    }
+
+    private AVFormatContext openOutput(AVCodecContext cc) {
+        AVFormatContext oc = new AVFormatContext(null);
+        if (avformat_alloc_output_context2(oc, null, null, recordFile) < 0) {
+            throw new RuntimeException("could not allocate output context");
+        }
+        AVStream st = avformat_new_stream(oc, null);
+        avcodec_parameters_from_context(st.codecpar(), cc);
+        st.time_base(cc.time_base());
+
+        AVIOContext pb = new AVIOContext(null);
+        if (avio_open(pb, recordFile, AVIO_FLAG_WRITE) < 0) {
+            throw new RuntimeException("Could not open " + recordFile);
+        }
+        oc.pb(pb);
+        if (avformat_write_header(oc, (AVDictionary) null) < 0) {
+            throw new RuntimeException("Error occurred when opening output file\n");
+        }
+        return oc;
+    }
+
+    /**
+     * Records the time since the frame of the packet was captured. Packets leave the encoder a few
+     * dozen frames after capture, so the search back from the last captured frame is short; dropped
+     * frames are simply overwritten.
+     */
+    private void recordLatency(long pts) {
+        if (pts == AV_NOPTS_VALUE()) {
+            return;
+        }
+        long newest = captured.get();
+        for (long seq = newest; seq > 0 && seq > newest - CAPTURE_RING; seq--) {
+            int slot = (int) (seq % CAPTURE_RING);
+            if (capturePts[slot] == pts) {
+                latencies.record(System.nanoTime() - captureNanos[slot]);
+                return;
+            }
+        }
+    }
+
+    private void encode(AVCodecContext cc, AVFrame frame, AVPacket out, AVFormatContext oc, AVStream st) {
+        long t0 = ENCODE_SEND.begin();
+        int sent = avcodec_send_frame(cc, frame);
+        ENCODE_SEND.end(t0);
+        if (sent < 0) {
+            throw new RuntimeException("Error sending a frame for encoding\n");
+        }
+        int r;
+        t0 = ENCODE_RECEIVE.begin();
+        while ((r = avcodec_receive_packet(cc, out)) == 0) {
+            ENCODE_RECEIVE.end(t0);
+            recordLatency(out.pts());
+            encoded.incrementAndGet();
+            av_packet_rescale_ts(out, cc.time_base(), st.time_base());
+            long writeStart = MUX_WRITE.begin();
+            int written = av_interleaved_write_frame(oc, out);
+            MUX_WRITE.end(writeStart);
+            if (written != 0) {
+                throw new RuntimeException("Error while writing video frame\n");
+            }
+            t0 = ENCODE_RECEIVE.begin();
+        }
+        ENCODE_RECEIVE.end(t0);
+        if (r != AVERROR_EAGAIN() && r != AVERROR_EOF()) {
+            throw new RuntimeException("error during encoding");
+        }
+    }
+
+    private void printRecordingStats() {
+        System.out.println(format("captured %d frames, dropped %d before conversion, %d before encoding, encoded %d",
+                captured.get(), droppedCaptured.get(), droppedConverted.get(), encoded.get()));
+        if (latencies.count() > 0) {
+            System.out.println(format("capture to packet latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    latencies.percentileNanos(50) / 1e6, latencies.percentileNanos(90) / 1e6,
+                    latencies.percentileNanos(99) / 1e6, latencies.maxNanos() / 1e6));
+        }
+    }
+
+    private enum OverloadPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK
     }
 }
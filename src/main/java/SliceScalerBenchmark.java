@@ -0,0 +1,143 @@
+import org.apache.commons.cli.*;
+import org.bytedeco.javacpp.*;
+import util.SliceScaler;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swscale.SWS_BICUBIC;
+
+/**
+ * Compares single sws_scale call with {@link SliceScaler} for the pixel format pairs used by the samples,
+ * fails when the bands give another picture than the single call
+ */
+public final class SliceScalerBenchmark {
+    private static final String DEFAULT_SIZES = "1920x1080,3840x2160";
+    private static final String DEFAULT_ITERATIONS = "50";
+    private static final String DEFAULT_SLICES = "0";
+
+    /** source and destination formats of GrabScreen, DemuxAndDecodeH264 and EncodeAndMuxH264 */
+    private static final int[][] FORMATS = {
+        {AV_PIX_FMT_BGR0, AV_PIX_FMT_BGR24},
+        {AV_PIX_FMT_YUV420P, AV_PIX_FMT_BGR24},
+        {AV_PIX_FMT_BGR24, AV_PIX_FMT_YUV420P}
+    };
+
+    private int iterations;
+    private int slices;
+
+    private SliceScalerBenchmark() {}
+
+    public static void main(String... argv) throws ParseException {
+        Options options = new Options();
+        options.addOption("help", false, "show help and exit");
+        options.addOption("sizes", true, "comma separated picture sizes WxH");
+        options.addOption("iterations", true, "conversions per measurement");
+        options.addOption("slices", true, "number of bands, 0 for one per core");
+        CommandLine cmd = new DefaultParser().parse(options, argv);
+        if (cmd.hasOption("help")) {
+            HelpFormatter helpFormatter = new HelpFormatter();
+            helpFormatter.printHelp("SliceScalerBenchmark [options]", options);
+        } else {
+            System.out.println("options:");
+            SliceScalerBenchmark instance = new SliceScalerBenchmark();
+            String sizes = getOption(cmd, "sizes", DEFAULT_SIZES);
+            instance.iterations = Integer.parseInt(getOption(cmd, "iterations", DEFAULT_ITERATIONS));
+            instance.slices = Integer.parseInt(getOption(cmd, "slices", DEFAULT_SLICES));
+            for (String size : sizes.split(",")) {
+                String[] wh = size.split("x");
+                for (int[] formats : FORMATS) {
+                    instance.run(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]), formats[0], formats[1]);
+                }
+            }
+        }
+    }
+
+    private static String getOption(CommandLine cmd, String key, String defaultValue) {
+        String v = cmd.getOptionValue(key, defaultValue);
+        System.out.println("\t" + key + " = \"" + v + "\"");
+        return v;
+    }
+
+    private void run(int width, int height, int srcFormat, int dstFormat) {
+        AVFrame src = allocFrame(width, height, srcFormat);
+        AVFrame single = allocFrame(width, height, dstFormat);
+        AVFrame sliced = allocFrame(width, height, dstFormat);
+        fillRandom(src);
+
+        SliceScaler singleScaler = new SliceScaler(width, height, srcFormat, width, height, dstFormat, SWS_BICUBIC, 1);
+        SliceScaler slicedScaler = new SliceScaler(width, height, srcFormat, width, height, dstFormat, SWS_BICUBIC, slices);
+        double singleMs = measure(singleScaler, src, single);
+        double slicedMs = measure(slicedScaler, src, sliced);
+
+        long differences = countDifferences(single, sliced);
+        String conversion = av_get_pix_fmt_name(srcFormat).getString() + " -> " + av_get_pix_fmt_name(dstFormat).getString();
+        System.out.println(String.format("%dx%d %s: single %.3f ms, %d slices %.3f ms, speedup %.2f, %d bytes differ",
+                width, height, conversion, singleMs, slicedScaler.slices(), slicedMs, singleMs / slicedMs, differences));
+
+        singleScaler.close();
+        slicedScaler.close();
+        av_frame_free(src);
+        av_frame_free(single);
+        av_frame_free(sliced);
+        if (differences != 0) {
+            throw new RuntimeException(conversion + " in bands differs from a single sws_scale call");
+        }
+    }
+
+    private double measure(SliceScaler scaler, AVFrame src, AVFrame dst) {
+        for (int i = 0; i < 5; i++) {
+            scaler.scale(src, dst);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            scaler.scale(src, dst);
+        }
+        return (System.nanoTime() - t0) / 1e6 / iterations;
+    }
+
+    private static AVFrame allocFrame(int width, int height, int format) {
+        AVFrame frame = av_frame_alloc();
+        frame.format(format);
+        frame.width(width);
+        frame.height(height);
+        if (av_frame_get_buffer(frame, 32) < 0) {
+            throw new RuntimeException("Could not allocate the video frame data");
+        }
+        return frame;
+    }
+
+    private static void fillRandom(AVFrame frame) {
+        Random random = new Random(0);
+        for (int p = 0; p < av_pix_fmt_count_planes(frame.format()); p++) {
+            ByteBuffer plane = planeBuffer(frame, p);
+            byte[] row = new byte[plane.capacity()];
+            random.nextBytes(row);
+            plane.put(row);
+        }
+    }
+
+    private static long countDifferences(AVFrame a, AVFrame b) {
+        long n = 0;
+        for (int p = 0; p < av_pix_fmt_count_planes(a.format()); p++) {
+            ByteBuffer pa = planeBuffer(a, p);
+            ByteBuffer pb = planeBuffer(b, p);
+            int linesize = a.linesize(p);
+            int rowBytes = av_image_get_linesize(a.format(), a.width(), p);
+            for (int row = 0; row < pa.capacity() / linesize; row++) {
+                for (int i = row * linesize; i < row * linesize + rowBytes; i++) {
+                    if (pa.get(i) != pb.get(i)) {
+                        ++n;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    private static ByteBuffer planeBuffer(AVFrame frame, int p) {
+        int rows = p == 1 || p == 2 ? -((-frame.height()) >> av_pix_fmt_desc_get(frame.format()).log2_chroma_h()) : frame.height();
+        return frame.data(p).capacity((long) frame.linesize(p) * rows).asByteBuffer();
+    }
+}
@@ -0,0 +1,312 @@
+import org.apache.commons.cli.*;
+import org.bytedeco.javacpp.*;
+import util.SliceScaler;
+
+import java.io.IOException;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swscale.SWS_BICUBIC;
+
+/**
+ * Re-encode video stream to h264 in matroska (MKV) container.
+ *
+ * Decoded frames go straight to the encoder, or through one sws_scale step when the size or the
+ * pixel format changes; pixels never enter the Java heap.
+ */
+public final class TranscodeH264 {
+    private static final String DEFAULT_FILE = "out.mkv";
+    private static final String DEFAULT_BITRATE = "400000";
+    private static final String DEFAULT_WIDTH = "0";
+    private static final String DEFAULT_HEIGHT = "0";
+    private static final String DEFAULT_GOP = "60";
+    private static final String DEFAULT_MAX_B_FRAMES = "2";
+    private static final String DEFAULT_PRESET = "medium";
+    private static final String DEFAULT_DECODER_THREADS = "0";
+    private static final String DEFAULT_ENCODER_THREADS = "0";
+    private static final String DEFAULT_SWS_SLICES = "0";
+
+    /** input format context */
+    private AVFormatContext ic;
+
+    /** input video stream */
+    private AVStream inStream;
+
+    /** decoder context */
+    private AVCodecContext dc;
+
+    /** encoder context */
+    private AVCodecContext ec;
+
+    /** output format context */
+    private AVFormatContext oc;
+
+    /** output video stream */
+    private AVStream outStream;
+
+    /** decoded frame */
+    private AVFrame decoded;
+
+    /** converted frame, null when decoded frames go to the encoder as they are */
+    private AVFrame scaled;
+    private SliceScaler scaler;
+
+    private AVPacket inPacket;
+    private AVPacket outPacket;
+
+    private String ofile;
+    private int bitrate;
+
+    /** output size, 0 to keep the input size */
+    private int width;
+    private int height;
+
+    private int gopSize;
+    private int maxBFrames;
+    private String preset;
+
+    /** number of decoder and encoder threads, 0 means codec default */
+    private int decoderThreads;
+    private int encoderThreads;
+
+    /** number of bands converted in parallel, 0 means one per available core */
+    private int swsSlices;
+
+    private int decodedFrames;
+    private int encodedPackets;
+
+    private TranscodeH264() {}
+
+    public static void main(String... argv) throws IOException, ParseException {
+        Options options = new Options();
+        options.addOption("help", false, "show help and exit");
+        options.addOption("file", true, "output file name");
+        options.addOption("bitrate", true, "bitrate");
+        options.addOption("width", true, "output width, 0 to keep the input width");
+        options.addOption("height", true, "output height, 0 to keep the input height");
+        options.addOption("gop", true, "gop size");
+        options.addOption("max_b_frames", true, "max b frames");
+        options.addOption("preset", true, "x264 preset");
+        options.addOption("decoder_threads", true, "number of decoder threads, 0 for default");
+        options.addOption("encoder_threads", true, "number of encoder threads, 0 for default");
+        options.addOption("sws_slices", true, "number of bands converted in parallel, 0 for one per core");
+        CommandLine cmd = new DefaultParser().parse(options, argv);
+        if (cmd.hasOption("help") || cmd.getArgs().length == 0) {
+            HelpFormatter helpFormatter = new HelpFormatter();
+            helpFormatter.printHelp("TranscodeH264 [options] input.mkv", options);
+        } else {
+            System.out.println("options:");
+            TranscodeH264 instance = new TranscodeH264();
+            instance.ofile = getOption(cmd, "file", DEFAULT_FILE);
+            instance.bitrate = Integer.parseInt(getOption(cmd, "bitrate", DEFAULT_BITRATE));
+            instance.width = Integer.parseInt(getOption(cmd, "width", DEFAULT_WIDTH));
+            instance.height = Integer.parseInt(getOption(cmd, "height", DEFAULT_HEIGHT));
+            instance.gopSize = Integer.parseInt(getOption(cmd, "gop", DEFAULT_GOP));
+            instance.maxBFrames = Integer.parseInt(getOption(cmd, "max_b_frames", DEFAULT_MAX_B_FRAMES));
+            instance.preset = getOption(cmd, "preset", DEFAULT_PRESET);
+            instance.decoderThreads = Integer.parseInt(getOption(cmd, "decoder_threads", DEFAULT_DECODER_THREADS));
+            instance.encoderThreads = Integer.parseInt(getOption(cmd, "encoder_threads", DEFAULT_ENCODER_THREADS));
+            instance.swsSlices = Integer.parseInt(getOption(cmd, "sws_slices", DEFAULT_SWS_SLICES));
+            instance.start(cmd.getArgs()[0]);
+        }
+    }
+
+    private static String getOption(CommandLine cmd, String key, String defaultValue) {
+        String v = cmd.getOptionValue(key, defaultValue);
+        System.out.println("\t" + key + " = \"" + v + "\"");
+        return v;
+    }
+
+    private void start(String file) throws IOException {
+        openInput(file);
+        openDecoder();
+        openEncoder();
+        openOutput();
+        allocFrames();
+
+        long startNanos = System.nanoTime();
+        while (av_read_frame(ic, inPacket) >= 0) {
+            if (inPacket.stream_index() == inStream.index()) {
+                decode(inPacket);
+            }
+            av_packet_unref(inPacket);
+        }
+        // now process delayed frames
+        decode(null);
+        encode(null);
+        av_write_trailer(oc);
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("transcoded %d frames into %d packets in %.3f s: %.1f fps",
+                decodedFrames, encodedPackets, seconds, decodedFrames / seconds));
+        free();
+    }
+
+    private void openInput(String file) throws IOException {
+        ic = new AVFormatContext(null);
+        int r = avformat_open_input(ic, file, null, null);
+        if (r < 0) {
+            throw new IOException("avformat_open_input error: " + r);
+        }
+        r = avformat_find_stream_info(ic, (PointerPointer) null);
+        if (r < 0) {
+            throw new IOException("avformat_find_stream_info error: " + r);
+        }
+        int videoStreamNumber = av_find_best_stream(ic, AVMEDIA_TYPE_VIDEO, -1, -1, (PointerPointer) null, 0);
+        if (videoStreamNumber < 0) {
+            throw new IOException("failed to find video stream");
+        }
+        inStream = ic.streams(videoStreamNumber);
+    }
+
+    private void openDecoder() {
+        AVCodec decoder = avcodec_find_decoder(inStream.codecpar().codec_id());
+        if (decoder == null) {
+            throw new RuntimeException("no decoder for the input stream");
+        }
+        dc = avcodec_alloc_context3(decoder);
+        avcodec_parameters_to_context(dc, inStream.codecpar());
+        dc.pkt_timebase(inStream.time_base());
+        dc.thread_count(decoderThreads);
+        if (avcodec_open2(dc, decoder, (PointerPointer) null) < 0) {
+            throw new RuntimeException("could not open decoder");
+        }
+    }
+
+    /**
+     * Encoder time base is one frame of the input frame rate, or the input stream time base
+     * if the frame rate is unknown
+     */
+    private void openEncoder() {
+        AVCodec encoder = avcodec_find_encoder(AV_CODEC_ID_H264);
+        ec = avcodec_alloc_context3(encoder);
+        AVRational frameRate = av_guess_frame_rate(ic, inStream, null);
+        ec.bit_rate(bitrate);
+        ec.width(width > 0 ? width : dc.width());
+        ec.height(height > 0 ? height : dc.height());
+        if (frameRate.num() > 0 && frameRate.den() > 0) {
+            ec.time_base(av_inv_q(frameRate));
+            ec.framerate(frameRate);
+        } else {
+            ec.time_base(inStream.time_base());
+        }
+        ec.sample_aspect_ratio(dc.sample_aspect_ratio());
+        ec.gop_size(gopSize);
+        ec.max_b_frames(maxBFrames);
+        av_opt_set(ec.priv_data(), "preset", preset, 0);
+        ec.thread_count(encoderThreads);
+        ec.pix_fmt(AV_PIX_FMT_YUV420P);
+        ec.flags(ec.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+        if (avcodec_open2(ec, encoder, (AVDictionary) null) < 0) {
+            throw new RuntimeException("could not open encoder");
+        }
+    }
+
+    private void openOutput() {
+        oc = new AVFormatContext(null);
+        if (avformat_alloc_output_context2(oc, null, null, ofile) < 0) {
+            throw new RuntimeException("could not allocate output context");
+        }
+        outStream = avformat_new_stream(oc, null);
+        avcodec_parameters_from_context(outStream.codecpar(), ec);
+        outStream.time_base(ec.time_base());
+        av_dump_format(oc, 0, ofile, 1);
+
+        AVIOContext pb = new AVIOContext(null);
+        if (avio_open(pb, ofile, AVIO_FLAG_WRITE) < 0) {
+            throw new RuntimeException("Could not open " + ofile);
+        }
+        oc.pb(pb);
+
+        // the muxer may change the stream time base
+        if (avformat_write_header(oc, (AVDictionary) null) < 0) {
+            throw new RuntimeException("Error occurred when opening output file\n");
+        }
+    }
+
+    /**
+     * A converted frame and a scaler are only allocated if the encoder input differs from the decoder output
+     */
+    private void allocFrames() {
+        decoded = av_frame_alloc();
+        inPacket = av_packet_alloc();
+        outPacket = av_packet_alloc();
+        if (dc.width() != ec.width() || dc.height() != ec.height() || dc.pix_fmt() != ec.pix_fmt()) {
+            scaler = new SliceScaler(dc.width(), dc.height(), dc.pix_fmt(),
+                    ec.width(), ec.height(), ec.pix_fmt(), SWS_BICUBIC, swsSlices);
+            scaled = av_frame_alloc();
+            scaled.format(ec.pix_fmt());
+            scaled.width(ec.width());
+            scaled.height(ec.height());
+            if (av_frame_get_buffer(scaled, 32) < 0) {
+                throw new RuntimeException("Could not allocate the video frame data");
+            }
+            System.out.println(String.format("converting %dx%d %s to %dx%d %s in %d bands",
+                    dc.width(), dc.height(), av_get_pix_fmt_name(dc.pix_fmt()).getString(),
+                    ec.width(), ec.height(), av_get_pix_fmt_name(ec.pix_fmt()).getString(), scaler.slices()));
+        }
+    }
+
+    private void decode(AVPacket packet) {
+        if (avcodec_send_packet(dc, packet) < 0) {
+            throw new RuntimeException("Error sending a packet for decoding\n");
+        }
+        int r;
+        while ((r = avcodec_receive_frame(dc, decoded)) == 0) {
+            ++decodedFrames;
+            long pts = av_rescale_q(decoded.best_effort_timestamp(), inStream.time_base(), ec.time_base());
+            AVFrame frame = decoded;
+            if (scaler != null) {
+                // the encoder may still reference the previous picture
+                if (av_frame_make_writable(scaled) < 0) {
+                    throw new RuntimeException("Could not make the video frame writable");
+                }
+                scaler.scale(decoded, scaled);
+                frame = scaled;
+            }
+            frame.pts(pts);
+            // let the encoder place keyframes instead of repeating the input picture types
+            frame.pict_type(AV_PICTURE_TYPE_NONE);
+            encode(frame);
+            av_frame_unref(decoded);
+        }
+        if (r != AVERROR_EAGAIN() && r != AVERROR_EOF()) {
+            throw new RuntimeException("error during decoding");
+        }
+    }
+
+    private void encode(AVFrame frame) {
+        if (avcodec_send_frame(ec, frame) < 0) {
+            throw new RuntimeException("Error sending a frame for encoding\n");
+        }
+        int r;
+        while ((r = avcodec_receive_packet(ec, outPacket)) == 0) {
+            ++encodedPackets;
+            av_packet_rescale_ts(outPacket, ec.time_base(), outStream.time_base());
+            outPacket.stream_index(outStream.index());
+            r = av_interleaved_write_frame(oc, outPacket);
+            if (r != 0) {
+                throw new RuntimeException("Error while writing video frame\n");
+            }
+        }
+        if (r != AVERROR_EAGAIN() && r != AVERROR_EOF()) {
+            throw new RuntimeException("error during encoding");
+        }
+    }
+
+    private void free() {
+        av_packet_free(inPacket);
+        av_packet_free(outPacket);
+        av_frame_free(decoded);
+        if (scaled != null) {
+            av_frame_free(scaled);
+            scaler.close();
+        }
+        avcodec_free_context(dc);
+        avcodec_free_context(ec);
+        avformat_close_input(ic);
+        avio_closep(oc.pb());
+        avformat_free_context(oc);
+    }
+}
@@ -1,70 +1,424 @@
-import org.bytedeco.javacpp.avcodec;
+import org.apache.commons.cli.*;
+import org.bytedeco.javacpp.*;
 import util.Canvas;
+import util.CaptureEngine;
+import util.FrameImage;
+import util.FrameRing;
+import util.SliceScaler;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.bytedeco.javacpp.avcodec.av_packet_unref;
-import static org.bytedeco.javacpp.avdevice.avdevice_register_all;
+import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avformat.*;
 import static org.bytedeco.javacpp.avutil.*;
+import static org.bytedeco.javacpp.swscale.SWS_BICUBIC;
 
 public class WebcamCapture {
   public static final int WIDTH = 800;
   public static final int HEIGHT = 600;
+
+  private static final String DEFAULT_DEVICE = "/dev/video0";
+  private static final String DEFAULT_FORMAT = "mjpeg";
+  private static final String DEFAULT_DECODER = "ffmpeg";
+  private static final String DEFAULT_THREADS = "0";
+
+  /** captured packets kept by the capture engine */
+  private static final int CAPTURE_RING = 8;
+
+  /** marks the end of packets of a decoder worker */
+  private static final AVPacket END_OF_PACKETS = new AVPacket((Pointer) null);
+
   private Canvas canvas;
 
-  public static void main(String... argv) throws IOException {
-    new WebcamCapture().start();
+  /** v4l2 device, used when there is no input file */
+  private String device;
+
+  /** MJPEG file or pipe standing in for the camera, null to capture from the device */
+  private String input;
+
+  /** demuxer of the input file: mjpeg, image2pipe or jpeg_pipe */
+  private String inputFormat;
+
+  /** "ffmpeg" decodes packets with libavcodec, "imageio" with ImageIO */
+  private String decoder;
+
+  /** number of parallel MJPEG decoders, 0 means one per available core */
+  private int threads;
+
+  /** decode without a window */
+  private boolean headless;
+
+  /** sequence number of the end of input in the frame ring, set by the reader thread */
+  private volatile long endOfInput = Long.MAX_VALUE;
+
+  /** heap bytes allocated by the decoding threads */
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  public static void main(String... argv) throws IOException, ParseException {
+    Options options = new Options();
+    options.addOption("help", false, "show help and exit");
+    options.addOption("device", true, "v4l2 device");
+    options.addOption("input", true, "MJPEG file or pipe to read instead of the device");
+    options.addOption("format", true, "input file format: mjpeg, image2pipe or jpeg_pipe");
+    options.addOption("decoder", true, "ffmpeg or imageio");
+    options.addOption("threads", true, "number of parallel MJPEG decoders, 0 for one per core");
+    options.addOption("headless", false, "decode without a window");
+    options.addOption("bench", false, "decode the input with ImageIO and with ffmpeg and compare");
+    CommandLine cmd = new DefaultParser().parse(options, argv);
+    if (cmd.hasOption("help")) {
+      HelpFormatter helpFormatter = new HelpFormatter();
+      helpFormatter.printHelp("WebcamCapture [options]", options);
+    } else {
+      System.out.println("options:");
+      WebcamCapture instance = new WebcamCapture();
+      instance.device = getOption(cmd, "device", DEFAULT_DEVICE);
+      instance.input = getOption(cmd, "input", null);
+      instance.inputFormat = getOption(cmd, "format", DEFAULT_FORMAT);
+      instance.decoder = getOption(cmd, "decoder", DEFAULT_DECODER);
+      instance.threads = Integer.parseInt(getOption(cmd, "threads", DEFAULT_THREADS));
+      instance.headless = cmd.hasOption("headless") || cmd.hasOption("bench");
+      if (cmd.hasOption("bench")) {
+        instance.benchmark();
+      } else {
+        instance.start();
+      }
+    }
+  }
+
+  private static String getOption(CommandLine cmd, String key, String defaultValue) {
+    String v = cmd.getOptionValue(key, defaultValue);
+    System.out.println("\t" + key + " = \"" + v + "\"");
+    return v;
   }
 
   private void start() throws IOException {
-    JFrame frame = new JFrame();
-    frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-    frame.setLayout(new BorderLayout());
-    canvas = new Canvas();
-    frame.add(canvas, BorderLayout.CENTER);
-    frame.setVisible(true);
-    frame.setSize(WIDTH, HEIGHT);
+    if (!headless) {
+      JFrame frame = new JFrame();
+      frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+      frame.setLayout(new BorderLayout());
+      canvas = new Canvas();
+      frame.add(canvas, BorderLayout.CENTER);
+      frame.setVisible(true);
+      frame.setSize(WIDTH, HEIGHT);
+    }
     startCapture();
   }
 
+  /**
+   * Decodes the input with every decoder and compares speed and heap allocation
+   */
+  private void benchmark() throws IOException {
+    if (input == null) {
+      throw new IllegalArgumentException("benchmark needs an input file");
+    }
+    for (String d : new String[] {"imageio", "ffmpeg"}) {
+      decoder = d;
+      allocatedBytes.set(0);
+      startCapture();
+    }
+  }
+
   private void startCapture() throws IOException {
     av_log_set_level(AV_LOG_VERBOSE);
-    avdevice_register_all();
-    AVInputFormat v4l2 = av_find_input_format("v4l2");
-    if (v4l2 == null) {
-      throw new RuntimeException("v4l2 not found");
+    CaptureEngine engine = openInput();
+    CaptureEngine.Subscription subscription = engine.subscribe(decoder, false);
+    engine.start();
+
+    long t0 = System.nanoTime();
+    long frames;
+    switch (decoder) {
+      case "ffmpeg":
+        frames = decodeWithFfmpeg(engine.stream(), subscription);
+        break;
+      case "imageio":
+        frames = decodeWithImageIO(subscription);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown decoder: " + decoder);
     }
-    AVFormatContext v4l2Device = avformat_alloc_context();
-    if (v4l2Device == null) {
-      throw new RuntimeException("failed to alloc AVFormatContext");
+    double seconds = (System.nanoTime() - t0) / 1e9;
+    System.out.println(String.format("%s: decoded %d frames in %.3f s: %.1f fps, %d heap bytes per frame",
+        decoder, frames, seconds, frames / seconds, frames == 0 ? 0 : allocatedBytes.get() / frames));
+    subscription.close();
+    engine.close();
+  }
+
+  /**
+   * @return opened capture engine reading the device, or the input file as fast as it is decoded
+   */
+  private CaptureEngine openInput() throws IOException {
+    CaptureEngine.Source source = input == null
+        ? CaptureEngine.Source.v4l2(device, "mjpeg")
+        : CaptureEngine.Source.file(input, inputFormat, false);
+    CaptureEngine engine = new CaptureEngine(source, CAPTURE_RING);
+    engine.open();
+    return engine;
+  }
+
+  /**
+   * Copies every packet into a new array and decodes it with ImageIO
+   */
+  private long decodeWithImageIO(CaptureEngine.Subscription subscription) throws IOException {
+    long allocated0 = threadAllocatedBytes();
+    long frames = 0;
+    try {
+      AVPacket pkt;
+      while ((pkt = subscription.next()) != null) {
+        byte[] data = new byte[pkt.size()];
+        pkt.data().get(data);
+
+        show(ImageIO.read(new ByteArrayInputStream(data)));
+        ++frames;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
     }
+    allocatedBytes.addAndGet(threadAllocatedBytes() - allocated0);
+    return frames;
+  }
 
-    AVDictionary options = new AVDictionary();
-    av_dict_set(options, "input_format", "mjpeg", 0);
+  /**
+   * MJPEG frames do not depend on each other, so packets are dealt round-robin to several decoder
+   * contexts that convert frames into the images of a ring; frames are shown in capture order.
+   * Packets and images are pooled, nothing is allocated per frame. A frame that fails to decode
+   * is not shown, the window keeps the previous picture.
+   */
+  private long decodeWithFfmpeg(AVStream stream, CaptureEngine.Subscription subscription) throws IOException {
+    int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    int width = stream.codecpar().width();
+    int height = stream.codecpar().height();
 
-    if(avformat_open_input(v4l2Device, "/dev/video0", v4l2, options) != 0) {
-      throw new RuntimeException("Couldn't open input stream.\n");
+    // every decoder fills one image, the window keeps the two latest ones
+    FrameImage[] images = new FrameImage[n + 3];
+    for (int i = 0; i < images.length; i++) {
+      images[i] = FrameImage.allocate(width, height, AV_PIX_FMT_BGR24);
     }
-    av_dict_free(options);
+    FrameRing<FrameImage> ring = new FrameRing<>(images);
+    // set by a decoder before it publishes the slot
+    boolean[] broken = new boolean[images.length];
+    AtomicReference<Throwable> failure = new AtomicReference<>();
 
-    av_dump_format(v4l2Device, 0, "", 0);
-    if (v4l2Device.nb_streams() == 0) {
-      throw new RuntimeException("Stream not found!");
+    List<BlockingQueue<AVPacket>> packets = new ArrayList<>();
+    List<BlockingQueue<AVPacket>> freePackets = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(n + 1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      BlockingQueue<AVPacket> queue = new ArrayBlockingQueue<>(3);
+      BlockingQueue<AVPacket> free = new ArrayBlockingQueue<>(2);
+      free.add(av_packet_alloc());
+      free.add(av_packet_alloc());
+      packets.add(queue);
+      freePackets.add(free);
+      int first = i;
+      futures.add(executor.submit(() -> {
+        try {
+          decodeLoop(stream, queue, free, ring, broken, first, n);
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+          ring.abort(e);
+          throw e;
+        }
+        return null;
+      }));
     }
+    futures.add(executor.submit(() -> {
+      try {
+        readLoop(subscription, stream.index(), packets, freePackets, ring);
+      } catch (Throwable e) {
+        failure.compareAndSet(null, e);
+        ring.abort(e);
+        throw e;
+      }
+      return null;
+    }));
+
+    long allocated0 = threadAllocatedBytes();
+    long seq = 0;
+    long shown = -1;
+    BufferedImage still = null;
+    try {
+      for (;; seq++) {
+        FrameImage image = ring.take(seq);
+        if (seq == endOfInput) {
+          break;
+        }
+        if (!broken[(int) (seq % images.length)]) {
+          show(image.image());
+          shown = seq;
+        }
+        if (seq >= 2) {
+          if (shown == seq - 2 && canvas != null) {
+            // the picture in the window is about to be reused, keep showing a copy of it
+            BufferedImage picture = image(images, seq - 2);
+            if (still == null) {
+              still = new BufferedImage(width, height, picture.getType());
+            }
+            still.setData(picture.getRaster());
+            show(still);
+          }
+          ring.release(seq - 2);
+        }
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException("decoding failed", failure.get() != null ? failure.get() : e.getCause());
+    } catch (RuntimeException e) {
+      if (failure.get() != null) {
+        throw new IOException("decoding failed", failure.get());
+      }
+      throw e;
+    } finally {
+      executor.shutdownNow();
+      awaitTermination(executor);
+      for (BlockingQueue<AVPacket> queue : packets) {
+        AVPacket p;
+        while ((p = queue.poll()) != null) {
+          if (p != END_OF_PACKETS) {
+            av_packet_free(p);
+          }
+        }
+      }
+      for (BlockingQueue<AVPacket> free : freePackets) {
+        for (AVPacket p : free) {
+          av_packet_free(p);
+        }
+      }
+      for (FrameImage image : images) {
+        image.free();
+      }
+    }
+    allocatedBytes.addAndGet(threadAllocatedBytes() - allocated0);
+    return seq;
+  }
 
-    avcodec.AVPacket pkt = new avcodec.AVPacket();
+  private static BufferedImage image(FrameImage[] images, long seq) {
+    return images[(int) (seq % images.length)].image();
+  }
+
+  /**
+   * Waits for the reader and decoder threads to return, they stop waiting once interrupted
+   */
+  private static void awaitTermination(ExecutorService executor) {
+    boolean interrupted = false;
     while (true) {
-      av_read_frame(v4l2Device, pkt);
-      byte[] data = new byte[pkt.size()];
-      pkt.data().get(data);
-      av_packet_unref(pkt);
+      try {
+        if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          break;
+        }
+        System.err.println("waiting for decoders to stop");
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
-      canvas.setImage(ImageIO.read(new ByteArrayInputStream(data)));
+  /**
+   * Hands references to the captured packets to the free packets of the decoder whose turn it is
+   */
+  private void readLoop(CaptureEngine.Subscription subscription, int streamIndex,
+                        List<BlockingQueue<AVPacket>> packets, List<BlockingQueue<AVPacket>> freePackets,
+                        FrameRing<FrameImage> ring) throws IOException, InterruptedException {
+    long allocated0 = threadAllocatedBytes();
+    int n = packets.size();
+    long seq = 0;
+    AVPacket captured;
+    while ((captured = subscription.next()) != null) {
+      if (captured.stream_index() != streamIndex) {
+        continue;
+      }
+      int worker = (int) (seq % n);
+      AVPacket p = freePackets.get(worker).take();
+      av_packet_ref(p, captured);
+      packets.get(worker).put(p);
+      ++seq;
+    }
+    for (BlockingQueue<AVPacket> queue : packets) {
+      queue.put(END_OF_PACKETS);
     }
+    endOfInput = seq;
+    ring.claim(seq);
+    ring.publish(seq);
+    allocatedBytes.addAndGet(threadAllocatedBytes() - allocated0);
+  }
+
+  /**
+   * Decodes every n-th packet starting with the first one
+   */
+  private void decodeLoop(AVStream stream, BlockingQueue<AVPacket> packets, BlockingQueue<AVPacket> freePackets,
+                          FrameRing<FrameImage> ring, boolean[] broken, long first, int n) throws InterruptedException {
+    AVCodec codec = avcodec_find_decoder(stream.codecpar().codec_id());
+    AVCodecContext dc = avcodec_alloc_context3(codec);
+    avcodec_parameters_to_context(dc, stream.codecpar());
+    dc.thread_count(1);
+    if (avcodec_open2(dc, codec, (PointerPointer) null) < 0) {
+      avcodec_free_context(dc);
+      throw new RuntimeException("could not open decoder");
+    }
+    AVFrame yuv = av_frame_alloc();
+    SliceScaler scaler = null;
+
+    long allocated0 = threadAllocatedBytes();
+    long seq = first;
+    try {
+      AVPacket p;
+      while ((p = packets.take()) != END_OF_PACKETS) {
+        int r = avcodec_send_packet(dc, p);
+        av_packet_unref(p);
+        freePackets.put(p);
+
+        FrameImage image = ring.claim(seq);
+        boolean decoded = r >= 0 && avcodec_receive_frame(dc, yuv) >= 0;
+        if (decoded) {
+          if (scaler == null) {
+            scaler = new SliceScaler(yuv.width(), yuv.height(), yuv.format(),
+                image.frame().width(), image.frame().height(), AV_PIX_FMT_BGR24, SWS_BICUBIC, 1);
+          }
+          scaler.scale(yuv, image.frame());
+          image.toImage();
+          av_frame_unref(yuv);
+        }
+        broken[(int) (seq % broken.length)] = !decoded;
+        ring.publish(seq);
+        seq += n;
+      }
+      allocatedBytes.addAndGet(threadAllocatedBytes() - allocated0);
+    } finally {
+      if (scaler != null) {
+        scaler.close();
+      }
+      av_frame_free(yuv);
+      avcodec_free_context(dc);
+    }
+  }
+
+  private void show(BufferedImage image) {
+    if (canvas != null) {
+      canvas.setImage(image);
+    }
+  }
+
+  private static long threadAllocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
   }
 }
@@ -0,0 +1,160 @@
+package util;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Writes images on a pool of writer threads.
+ *
+ * Images are taken from a fixed pool with {@link #acquire()}, filled by the caller and handed over
+ * with {@link #submit(FrameImage, File)}. The image returns to the pool once it is written, so
+ * the caller blocks only when every pooled image is waiting for a writer.
+ */
+public final class AsyncImageWriter implements AutoCloseable {
+  private static final Probe WRITE = Probes.get("image.write");
+
+  private final String format;
+  private final BlockingQueue<FrameImage> freeImages;
+  private final BlockingQueue<Task> tasks;
+  private final Thread[] writers;
+
+  /** first error reported by a writer thread */
+  private volatile IOException failure;
+
+  /** number of times {@link #acquire()} had to wait for a free image */
+  private long stalls;
+
+  /**
+   * @param format image format name, as understood by {@link ImageIO#write}
+   * @param nWriters number of writer threads
+   * @param nImages number of pooled images
+   * @param factory creates the pooled images
+   */
+  public AsyncImageWriter(String format, int nWriters, int nImages, Supplier<FrameImage> factory) {
+    this.format = format;
+    this.freeImages = new ArrayBlockingQueue<>(nImages);
+    this.tasks = new ArrayBlockingQueue<>(nImages + nWriters);
+    for (int i = 0; i < nImages; i++) {
+      freeImages.add(factory.get());
+    }
+
+    writers = new Thread[nWriters];
+    for (int i = 0; i < nWriters; i++) {
+      writers[i] = new Thread(this::writeLoop, "image-writer-" + i);
+      writers[i].start();
+    }
+  }
+
+  /**
+   * @return free image from the pool, waits if all images are in use
+   */
+  public FrameImage acquire() throws IOException {
+    checkFailure();
+    FrameImage image = freeImages.poll();
+    if (image == null) {
+      ++stalls;
+      try {
+        image = freeImages.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", e);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Queues image for writing. The image must not be touched until it is acquired again.
+   */
+  public void submit(FrameImage image, File file) throws IOException {
+    checkFailure();
+    put(new Task(image, file));
+  }
+
+  /**
+   * @return number of times the caller had to wait for a free image
+   */
+  public long getStalls() {
+    return stalls;
+  }
+
+  /**
+   * Waits until all queued images are written, stops writer threads and frees pooled images.
+   */
+  @Override
+  public void close() throws IOException {
+    for (int i = 0; i < writers.length; i++) {
+      put(Task.STOP);
+    }
+    for (Thread writer : writers) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", e);
+      }
+    }
+    for (FrameImage image : freeImages) {
+      image.free();
+    }
+    freeImages.clear();
+    checkFailure();
+  }
+
+  private void put(Task task) throws IOException {
+    try {
+      tasks.put(task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      Task task;
+      while ((task = tasks.take()) != Task.STOP) {
+        try {
+          if (failure == null) {
+            long t0 = WRITE.begin();
+            if (!ImageIO.write(task.image.toImage(), format, task.file)) {
+              throw new IOException("no " + format + " image writer");
+            }
+            WRITE.end(t0);
+          }
+        } catch (IOException e) {
+          failure = e;
+        } catch (RuntimeException e) {
+          // keep taking tasks, so that the pool is refilled and close() is not blocked
+          failure = new IOException("could not write " + task.file, e);
+        } finally {
+          freeImages.add(task.image);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static final class Task {
+    private static final Task STOP = new Task(null, null);
+
+    private final FrameImage image;
+    private final File file;
+
+    private Task(FrameImage image, File file) {
+      this.image = image;
+      this.file = file;
+    }
+  }
+}
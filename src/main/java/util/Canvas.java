@@ -3,20 +3,51 @@ package util;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Shows the latest image set from any thread.
+ *
+ * A repaint is requested only if the previous one has started, so a fast producer does not flood
+ * the event dispatch thread with repaints that would be collapsed anyway.
+ */
 public class Canvas extends JPanel {
-  private BufferedImage bufferedImage;
+  private volatile BufferedImage bufferedImage;
+  private final AtomicBoolean repaintPending = new AtomicBoolean();
+  private final AtomicLong images = new AtomicLong();
+  private final AtomicLong painted = new AtomicLong();
 
   @Override
   public void paint(Graphics g) {
+    repaintPending.set(false);
     Graphics2D g2d = (Graphics2D) g;
-    if (bufferedImage != null) {
-      g2d.drawImage(bufferedImage, 0, 0, null);
+    BufferedImage image = bufferedImage;
+    if (image != null) {
+      g2d.drawImage(image, 0, 0, null);
+      painted.incrementAndGet();
     }
   }
 
   public void setImage(BufferedImage bufferedImage) {
     this.bufferedImage = bufferedImage;
-    repaint();
+    images.incrementAndGet();
+    if (repaintPending.compareAndSet(false, true)) {
+      repaint();
+    }
+  }
+
+  /**
+   * @return number of images set
+   */
+  public long images() {
+    return images.get();
+  }
+
+  /**
+   * @return number of times an image was painted
+   */
+  public long painted() {
+    return painted.get();
   }
 }
@@ -0,0 +1,379 @@
+package util;
+
+import org.bytedeco.javacpp.PointerPointer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avdevice.avdevice_register_all;
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Reads packets of a capture device or a replayed file on a dedicated thread into a ring of
+ * pre-allocated packets shared by all subscribers.
+ *
+ * Every subscriber reads the same packets without copies. A blocking subscriber holds the reader
+ * back when it is a whole ring behind; a lossy subscriber, such as a preview, never does and skips
+ * to the oldest packet still in the ring instead. The packet returned by
+ * {@link Subscription#next()} stays valid until it is released or the next call.
+ */
+public final class CaptureEngine implements AutoCloseable {
+  private final Source source;
+  private final AVPacket[] slots;
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private AVFormatContext ctx;
+  private Thread reader;
+
+  /** packets below this sequence number are in the ring */
+  private long written;
+
+  /** no more packets will be written */
+  private boolean ended;
+  private volatile boolean closed;
+
+  /** error that ended reading, null at the end of input */
+  private IOException failure;
+
+  /** number of times the device had no packet ready */
+  private long retries;
+
+  /**
+   * @param ringSize number of pre-allocated packets
+   */
+  public CaptureEngine(Source source, int ringSize) {
+    this.source = source;
+    this.slots = new AVPacket[ringSize];
+    for (int i = 0; i < ringSize; i++) {
+      slots[i] = av_packet_alloc();
+    }
+  }
+
+  /**
+   * Opens the source, so its streams can be inspected before capture starts
+   */
+  public void open() throws IOException {
+    if (source.device) {
+      avdevice_register_all();
+    }
+    AVInputFormat format = null;
+    if (source.format != null) {
+      format = av_find_input_format(source.format);
+      if (format == null) {
+        throw new IOException(source.format + " not found");
+      }
+    }
+    AVDictionary options = new AVDictionary();
+    for (Map.Entry<String, String> option : source.options.entrySet()) {
+      av_dict_set(options, option.getKey(), option.getValue(), 0);
+    }
+    ctx = avformat_alloc_context();
+    int r = avformat_open_input(ctx, source.url, format, options);
+    av_dict_free(options);
+    if (r != 0) {
+      throw new IOException("Couldn't open input stream " + source.url + ": " + r);
+    }
+    if (avformat_find_stream_info(ctx, (PointerPointer) null) < 0) {
+      throw new IOException("Couldn't find stream information");
+    }
+    av_dump_format(ctx, 0, source.url, 0);
+    if (ctx.nb_streams() == 0) {
+      throw new IOException("Stream not found!");
+    }
+  }
+
+  public AVFormatContext context() {
+    return ctx;
+  }
+
+  /**
+   * @return first stream of the source
+   */
+  public AVStream stream() {
+    return ctx.streams(0);
+  }
+
+  /**
+   * Starts the reader thread
+   */
+  public void start() {
+    reader = new Thread(this::readLoop, "capture-engine");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * @param lossy skip packets instead of holding the reader back
+   * @return subscription starting with the next packet read
+   */
+  public synchronized Subscription subscribe(String name, boolean lossy) {
+    Subscription subscription = new Subscription(name, lossy, written);
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  /**
+   * @return number of times the source had no packet ready
+   */
+  public synchronized long retries() {
+    return retries;
+  }
+
+  /**
+   * @return number of packets read
+   */
+  public synchronized long packets() {
+    return written;
+  }
+
+  /**
+   * Stops the reader, frees the packets and closes the source
+   */
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (this) {
+      notifyAll();
+    }
+    if (reader != null) {
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (AVPacket slot : slots) {
+      av_packet_free(slot);
+    }
+    if (ctx != null) {
+      avformat_close_input(ctx);
+    }
+  }
+
+  private void readLoop() {
+    AVRational timebase = stream().time_base();
+    long firstPts = AV_NOPTS_VALUE();
+    long startNanos = 0;
+    try {
+      while (!closed) {
+        long seq = written;
+        synchronized (this) {
+          while (!closed && isInUse(seq - slots.length)) {
+            wait();
+          }
+        }
+        if (closed) {
+          break;
+        }
+
+        AVPacket p = slots[(int) (seq % slots.length)];
+        av_packet_unref(p);
+        int r = av_read_frame(ctx, p);
+        if (r == AVERROR_EAGAIN()) {
+          synchronized (this) {
+            ++retries;
+          }
+          Thread.sleep(1);
+          continue;
+        }
+        if (r == AVERROR_EOF()) {
+          break;
+        }
+        if (r < 0) {
+          throw new IOException("av_read_frame error: " + r);
+        }
+
+        if (source.realtime && p.pts() != AV_NOPTS_VALUE()) {
+          // replay packets at the pace of their timestamps
+          if (firstPts == AV_NOPTS_VALUE()) {
+            firstPts = p.pts();
+            startNanos = System.nanoTime();
+          }
+          long due = startNanos + av_rescale_q(p.pts() - firstPts, timebase, NANOSECONDS);
+          long delay = due - System.nanoTime();
+          if (delay > 0) {
+            Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+          }
+        }
+
+        synchronized (this) {
+          written = seq + 1;
+          notifyAll();
+        }
+      }
+    } catch (IOException e) {
+      synchronized (this) {
+        failure = e;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        ended = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return true if the packet may not be overwritten yet
+   */
+  private boolean isInUse(long seq) {
+    if (seq < 0) {
+      return false;
+    }
+    for (Subscription s : subscriptions) {
+      if (s.cursor <= seq && (!s.lossy || s.held)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final AVRational NANOSECONDS = av_make_q(1, 1_000_000_000);
+
+  /**
+   * Consumer of the packets of the engine
+   */
+  public final class Subscription implements AutoCloseable {
+    private final String name;
+    private final boolean lossy;
+
+    /** sequence number of the packet read next, or held if {@link #held} */
+    private long cursor;
+    private boolean held;
+    private long received;
+    private long dropped;
+
+    private Subscription(String name, boolean lossy, long cursor) {
+      this.name = name;
+      this.lossy = lossy;
+      this.cursor = cursor;
+    }
+
+    /**
+     * Releases the previous packet and waits for the next one
+     *
+     * @return packet owned by the engine, valid until the next call, or null at the end of input
+     */
+    public AVPacket next() throws IOException, InterruptedException {
+      synchronized (CaptureEngine.this) {
+        release();
+        if (lossy && cursor <= written - slots.length) {
+          // the oldest packet may be overwritten right now
+          long oldest = written - slots.length + 1;
+          dropped += oldest - cursor;
+          cursor = oldest;
+        }
+        while (cursor >= written && !ended) {
+          CaptureEngine.this.wait();
+        }
+        if (cursor >= written) {
+          if (failure != null) {
+            throw failure;
+          }
+          return null;
+        }
+        held = true;
+        ++received;
+        return slots[(int) (cursor % slots.length)];
+      }
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public long received() {
+      synchronized (CaptureEngine.this) {
+        return received;
+      }
+    }
+
+    /**
+     * @return number of packets a lossy subscriber skipped
+     */
+    public long dropped() {
+      synchronized (CaptureEngine.this) {
+        return dropped;
+      }
+    }
+
+    /**
+     * Releases the held packet and stops holding the reader back
+     */
+    @Override
+    public void close() {
+      synchronized (CaptureEngine.this) {
+        release();
+        subscriptions.remove(this);
+        CaptureEngine.this.notifyAll();
+      }
+    }
+
+    /**
+     * Hands the packet back before the next call, a packet held by a lossy subscriber still holds
+     * the reader back when the ring wraps around to it
+     */
+    public void release() {
+      synchronized (CaptureEngine.this) {
+        if (held) {
+          held = false;
+          ++cursor;
+          CaptureEngine.this.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Input format, url and demuxer options of a capture source
+   */
+  public static final class Source {
+    private final String format;
+    private final String url;
+    private final boolean device;
+    private final boolean realtime;
+    private final Map<String, String> options = new LinkedHashMap<>();
+
+    private Source(String format, String url, boolean device, boolean realtime) {
+      this.format = format;
+      this.url = url;
+      this.device = device;
+      this.realtime = realtime;
+    }
+
+    /**
+     * @return screen region of an X display
+     */
+    public static Source x11grab(String display, int x, int y, int width, int height, int fps) {
+      return new Source("x11grab", String.format("%s.0+%d,%d", display, x, y), true, false)
+          .option("video_size", String.format("%dx%d", width, height))
+          .option("framerate", String.valueOf(fps));
+    }
+
+    /**
+     * @param inputFormat pixel or compressed format requested from the camera, such as mjpeg
+     */
+    public static Source v4l2(String device, String inputFormat) {
+      return new Source("v4l2", device, true, false).option("input_format", inputFormat);
+    }
+
+    /**
+     * @param format demuxer name, null to probe
+     * @param realtime deliver packets at the pace of their timestamps, like a device
+     */
+    public static Source file(String path, String format, boolean realtime) {
+      return new Source(format, path, false, realtime);
+    }
+
+    public Source option(String key, String value) {
+      options.put(key, value);
+      return this;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package util;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Demuxer input {@code AVIOContext} that reads from a {@link ByteBuffer}, from memory-mapped
+ * windows of a file or from a seekable Java channel.
+ *
+ * A buffer source, for example data already received into memory, and a mapped source are copied
+ * straight into the demuxer buffer without system calls. A mapped source maps one window of the
+ * file at a time and maps the next one when a read or seek leaves it, so files of any size can be
+ * read. A channel source reads into a direct view of the demuxer buffer. The context must be set
+ * as {@code AVFormatContext.pb} with {@code AVFMT_FLAG_CUSTOM_IO} before {@code avformat_open_input}.
+ */
+public final class ChannelInput implements AutoCloseable {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+  private static final int SEEK_SET = 0;
+  private static final int SEEK_CUR = 1;
+  private static final int SEEK_END = 2;
+
+  /** AVERROR(EIO) */
+  private static final int ERROR_IO = -5;
+
+  /**
+   * Callbacks are shared by all inputs: the presets bind callback instances to a few native slots,
+   * so every input is found by the address of its opaque pointer instead.
+   */
+  private static final ReadPacket READ_PACKET = new ReadPacket();
+  private static final SeekPacket SEEK_PACKET = new SeekPacket();
+  private static final Map<Long, ChannelInput> INPUTS = new ConcurrentHashMap<>();
+
+  /** source buffer, null for a channel source */
+  private final ByteBuffer source;
+
+  /** source channel, null for a buffer source */
+  private final SeekableByteChannel channel;
+
+  /** read through mapped windows of the channel instead of channel reads */
+  private final boolean mapped;
+
+  /** mapped window of the channel and its file offset, null until the first read */
+  private ByteBuffer window;
+  private long windowStart;
+
+  /** read position of a mapped source */
+  private long position;
+
+  private final AVIOContext avio;
+
+  /** opaque pointer of the context, identifies this input in callbacks */
+  private final BytePointer opaque = new BytePointer(1);
+
+  /** first error of a channel read */
+  private IOException failure;
+
+  private long bytes;
+  private long reads;
+
+  private ChannelInput(ByteBuffer source, SeekableByteChannel channel, boolean mapped, int bufferSize) {
+    this.source = source == null ? null : source.duplicate();
+    this.channel = channel;
+    this.mapped = mapped;
+    BytePointer buffer = new BytePointer(av_malloc(bufferSize));
+    avio = avio_alloc_context(buffer, bufferSize, 0, opaque, READ_PACKET, null, SEEK_PACKET);
+    if (avio == null || avio.isNull()) {
+      av_free(buffer);
+      throw new RuntimeException("could not allocate AVIOContext");
+    }
+    INPUTS.put(opaque.address(), this);
+  }
+
+  /**
+   * @param source media data between position and limit, the buffer itself is not modified
+   */
+  public static ChannelInput of(ByteBuffer source) {
+    return new ChannelInput(source.slice(), null, false, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param channel media data from position 0, not closed by {@link #close()}
+   */
+  public static ChannelInput of(SeekableByteChannel channel) {
+    return new ChannelInput(null, channel, false, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param channel media data from position 0, read through read-only mapped windows, not closed by {@link #close()}
+   */
+  public static ChannelInput mapped(FileChannel channel) {
+    return new ChannelInput(null, channel, true, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @return copy of the file in a direct buffer, may be shared by several inputs
+   * @throws IOException if the file does not fit in a buffer, which holds at most 2 GiB
+   */
+  public static ByteBuffer load(File file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (ch.size() > Integer.MAX_VALUE) {
+        throw new IOException(String.format("%s has %d bytes, too large to load into memory; read it mapped or through a channel",
+            file, ch.size()));
+      }
+      ByteBuffer data = ByteBuffer.allocateDirect((int) ch.size());
+      while (data.hasRemaining()) {
+        if (ch.read(data) < 0) {
+          throw new IOException("unexpected end of " + file);
+        }
+      }
+      data.flip();
+      return data;
+    }
+  }
+
+  /**
+   * @return context to set as {@code AVFormatContext.pb}
+   */
+  public AVIOContext avio() {
+    return avio;
+  }
+
+  /**
+   * @return number of bytes passed to the demuxer
+   */
+  public long bytes() {
+    return bytes;
+  }
+
+  /**
+   * @return number of read callbacks
+   */
+  public long reads() {
+    return reads;
+  }
+
+  /**
+   * Frees the context, call after {@code avformat_close_input}. A channel source is not closed.
+   */
+  @Override
+  public void close() throws IOException {
+    // the demuxer may have replaced the buffer
+    av_free(avio.buffer());
+    avio_context_free(avio);
+    INPUTS.remove(opaque.address());
+    opaque.deallocate();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private int read(BytePointer buf, int size) {
+    ByteBuffer target = buf.capacity(size).asByteBuffer();
+    int n;
+    if (source != null) {
+      n = Math.min(size, source.remaining());
+      if (n == 0) {
+        return AVERROR_EOF();
+      }
+      ByteBuffer chunk = source.duplicate();
+      chunk.limit(chunk.position() + n);
+      target.put(chunk);
+      source.position(source.position() + n);
+    } else
+    if (mapped) {
+      try {
+        if (!mapWindow()) {
+          return AVERROR_EOF();
+        }
+      } catch (IOException e) {
+        failure = e;
+        return ERROR_IO;
+      }
+      int offset = (int) (position - windowStart);
+      n = Math.min(size, window.capacity() - offset);
+      ByteBuffer chunk = window.duplicate();
+      chunk.limit(offset + n).position(offset);
+      target.put(chunk);
+      position += n;
+    } else {
+      try {
+        n = channel.read(target);
+      } catch (IOException e) {
+        failure = e;
+        return ERROR_IO;
+      }
+      if (n < 0) {
+        return AVERROR_EOF();
+      }
+    }
+    bytes += n;
+    ++reads;
+    return n;
+  }
+
+  private long seek(long offset, int whence) {
+    try {
+      long size = source != null ? source.capacity() : channel.size();
+      if ((whence & AVSEEK_SIZE) != 0) {
+        return size;
+      }
+      long position = source != null ? source.position() : mapped ? this.position : channel.position();
+      switch (whence & ~AVSEEK_FORCE) {
+        case SEEK_SET:
+          break;
+        case SEEK_CUR:
+          offset += position;
+          break;
+        case SEEK_END:
+          offset += size;
+          break;
+        default:
+          return ERROR_IO;
+      }
+      if (offset < 0 || offset > size) {
+        return ERROR_IO;
+      }
+      if (source != null) {
+        source.position((int) offset);
+      } else
+      if (mapped) {
+        this.position = offset;
+      } else {
+        channel.position(offset);
+      }
+      return offset;
+    } catch (IOException e) {
+      failure = e;
+      return ERROR_IO;
+    }
+  }
+
+  /**
+   * Maps the window holding the read position unless it is mapped already
+   *
+   * @return false at the end of the file
+   */
+  private boolean mapWindow() throws IOException {
+    if (window != null && position >= windowStart && position < windowStart + window.capacity()) {
+      return true;
+    }
+    long size = channel.size();
+    if (position >= size) {
+      return false;
+    }
+    windowStart = position / MAP_WINDOW_SIZE * MAP_WINDOW_SIZE;
+    window = ((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, windowStart,
+        Math.min(MAP_WINDOW_SIZE, size - windowStart));
+    return true;
+  }
+
+  private static final class ReadPacket extends Read_packet_Pointer_BytePointer_int {
+    @Override
+    public int call(Pointer opaque, BytePointer buf, int size) {
+      return INPUTS.get(opaque.address()).read(buf, size);
+    }
+  }
+
+  private static final class SeekPacket extends Seek_Pointer_long_int {
+    @Override
+    public long call(Pointer opaque, long offset, int whence) {
+      return INPUTS.get(opaque.address()).seek(offset, whence);
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package util;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Muxer output {@code AVIOContext} that writes into a Java channel.
+ *
+ * The muxer fills one native buffer; the write callback hands a direct {@link ByteBuffer} view of
+ * it to the channel, so no data goes through the Java heap. With a pool of buffers the view is
+ * copied into a free pooled direct buffer and written by a writer thread instead, so the muxer
+ * does not wait for a slow channel until every pooled buffer is queued. Seeking is supported only
+ * for synchronous writes to a {@link SeekableByteChannel}.
+ */
+public final class ChannelOutput implements AutoCloseable {
+  private static final int SEEK_SET = 0;
+  private static final int SEEK_CUR = 1;
+  private static final int SEEK_END = 2;
+
+  /** AVERROR(EIO) */
+  private static final int ERROR_IO = -5;
+
+  /**
+   * Callbacks are shared by all outputs: the presets bind callback instances to a few native slots,
+   * so every output is found by the address of its opaque pointer instead.
+   */
+  private static final WritePacket WRITE_PACKET = new WritePacket();
+  private static final SeekPacket SEEK_PACKET = new SeekPacket();
+  private static final Map<Long, ChannelOutput> OUTPUTS = new ConcurrentHashMap<>();
+
+  private static final ByteBuffer STOP = ByteBuffer.allocate(0);
+
+  private final WritableByteChannel channel;
+  private final AVIOContext avio;
+
+  /** opaque pointer of the context, identifies this output in callbacks */
+  private final BytePointer opaque = new BytePointer(1);
+
+  private final BlockingQueue<ByteBuffer> freeBuffers;
+  private final BlockingQueue<ByteBuffer> queue;
+  private final Thread writer;
+
+  /** first error of a channel write */
+  private volatile IOException failure;
+
+  private long bytes;
+  private long writes;
+  private long stalls;
+
+  /**
+   * @param bufferSize size of the muxer buffer and of every pooled buffer
+   * @param nBuffers number of pooled buffers written by a writer thread, 0 to write on the muxer thread
+   */
+  public ChannelOutput(WritableByteChannel channel, int bufferSize, int nBuffers) {
+    this.channel = channel;
+    boolean seekable = nBuffers == 0 && channel instanceof SeekableByteChannel;
+
+    BytePointer buffer = new BytePointer(av_malloc(bufferSize));
+    avio = avio_alloc_context(buffer, bufferSize, 1, opaque, null, WRITE_PACKET, seekable ? SEEK_PACKET : null);
+    if (avio == null || avio.isNull()) {
+      av_free(buffer);
+      throw new RuntimeException("could not allocate AVIOContext");
+    }
+    OUTPUTS.put(opaque.address(), this);
+    avio.seekable(seekable ? AVIO_SEEKABLE_NORMAL : 0);
+
+    if (nBuffers > 0) {
+      freeBuffers = new ArrayBlockingQueue<>(nBuffers);
+      queue = new ArrayBlockingQueue<>(nBuffers + 1);
+      for (int i = 0; i < nBuffers; i++) {
+        freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+      }
+      writer = new Thread(this::writeLoop, "channel-writer");
+      writer.start();
+    } else {
+      freeBuffers = null;
+      queue = null;
+      writer = null;
+    }
+  }
+
+  /**
+   * @return context to set as {@code AVFormatContext.pb}
+   */
+  public AVIOContext avio() {
+    return avio;
+  }
+
+  /**
+   * Passes buffered muxer output to the channel
+   */
+  public void flush() {
+    avio_flush(avio);
+  }
+
+  /**
+   * @return number of bytes written by the muxer
+   */
+  public long bytes() {
+    return bytes;
+  }
+
+  /**
+   * @return number of write callbacks
+   */
+  public long writes() {
+    return writes;
+  }
+
+  /**
+   * @return number of times the muxer had to wait for a free pooled buffer
+   */
+  public long stalls() {
+    return stalls;
+  }
+
+  /**
+   * Flushes the muxer buffer, waits until queued buffers are written and frees the context.
+   * The channel is not closed.
+   */
+  @Override
+  public void close() throws IOException {
+    avio_flush(avio);
+    if (writer != null) {
+      try {
+        queue.put(STOP);
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", e);
+      }
+    }
+    // the muxer may have replaced the buffer
+    av_free(avio.buffer());
+    avio_context_free(avio);
+    OUTPUTS.remove(opaque.address());
+    opaque.deallocate();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private int write(BytePointer buf, int size) {
+    if (failure != null) {
+      return ERROR_IO;
+    }
+    ByteBuffer data = buf.capacity(size).asByteBuffer();
+    try {
+      if (writer == null) {
+        writeFully(data);
+      } else {
+        ByteBuffer pooled = freeBuffers.poll();
+        if (pooled == null) {
+          ++stalls;
+          pooled = freeBuffers.take();
+        }
+        pooled.clear();
+        pooled.put(data);
+        pooled.flip();
+        queue.put(pooled);
+      }
+    } catch (IOException e) {
+      failure = e;
+      return ERROR_IO;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = new IOException("interrupted", e);
+      return ERROR_IO;
+    }
+    bytes += size;
+    ++writes;
+    return size;
+  }
+
+  private long seek(long offset, int whence) {
+    SeekableByteChannel ch = (SeekableByteChannel) channel;
+    try {
+      if ((whence & AVSEEK_SIZE) != 0) {
+        return ch.size();
+      }
+      switch (whence & ~AVSEEK_FORCE) {
+        case SEEK_SET:
+          break;
+        case SEEK_CUR:
+          offset += ch.position();
+          break;
+        case SEEK_END:
+          offset += ch.size();
+          break;
+        default:
+          return ERROR_IO;
+      }
+      ch.position(offset);
+      return offset;
+    } catch (IOException e) {
+      failure = e;
+      return ERROR_IO;
+    }
+  }
+
+  private void writeFully(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      ByteBuffer data;
+      while ((data = queue.take()) != STOP) {
+        try {
+          if (failure == null) {
+            writeFully(data);
+          }
+        } catch (IOException e) {
+          failure = e;
+        } finally {
+          freeBuffers.add(data);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static final class WritePacket extends Write_packet_Pointer_BytePointer_int {
+    @Override
+    public int call(Pointer opaque, BytePointer buf, int size) {
+      return OUTPUTS.get(opaque.address()).write(buf, size);
+    }
+  }
+
+  private static final class SeekPacket extends Seek_Pointer_long_int {
+    @Override
+    public long call(Pointer opaque, long offset, int whence) {
+      return OUTPUTS.get(opaque.address()).seek(offset, whence);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package util;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the tiles of a packed-pixel picture that changed since the previous picture.
+ *
+ * The previous picture is kept in a copy; tile rows are compared 8 bytes at a time and only the
+ * tiles found changed are copied again, so an unchanged picture costs one comparison pass.
+ */
+public final class DirtyTiles {
+  private final int width;
+  private final int height;
+  private final int bytesPerPixel;
+  private final int tileSize;
+  private final int columns;
+  private final int rows;
+
+  /** copy of the previous picture, null until the first update */
+  private ByteBuffer previous;
+  private int linesize;
+
+  /** changed tiles of the last update, row by row */
+  private final boolean[] dirty;
+  private int dirtyCount;
+
+  /**
+   * @param tileSize tile width and height in pixels
+   */
+  public DirtyTiles(int width, int height, int bytesPerPixel, int tileSize) {
+    this.width = width;
+    this.height = height;
+    this.bytesPerPixel = bytesPerPixel;
+    this.tileSize = tileSize;
+    this.columns = (width + tileSize - 1) / tileSize;
+    this.rows = (height + tileSize - 1) / tileSize;
+    this.dirty = new boolean[columns * rows];
+  }
+
+  public int columns() {
+    return columns;
+  }
+
+  public int rows() {
+    return rows;
+  }
+
+  /**
+   * Compares the picture with the previous one and remembers changed tiles. Every tile of the
+   * first picture is changed.
+   *
+   * @return number of changed tiles
+   */
+  public int update(ByteBuffer picture, int linesize) {
+    if (previous == null || this.linesize != linesize) {
+      this.linesize = linesize;
+      previous = ByteBuffer.allocateDirect(linesize * height);
+      copy(picture, 0, 0, linesize * height);
+      Arrays.fill(dirty, true);
+      dirtyCount = dirty.length;
+      return dirtyCount;
+    }
+
+    // rows are compared as longs, so both buffers must use the same byte order
+    previous.order(picture.order());
+    dirtyCount = 0;
+    int tileBytes = tileSize * bytesPerPixel;
+    for (int r = 0; r < rows; r++) {
+      int y0 = r * tileSize;
+      int y1 = Math.min(height, y0 + tileSize);
+      for (int c = 0; c < columns; c++) {
+        int x = c * tileBytes;
+        int len = Math.min(width * bytesPerPixel - x, tileBytes);
+        boolean changed = false;
+        for (int y = y0; y < y1 && !changed; y++) {
+          changed = !equal(picture, previous, y * linesize + x, len);
+        }
+        dirty[r * columns + c] = changed;
+        if (changed) {
+          ++dirtyCount;
+          for (int y = y0; y < y1; y++) {
+            copy(picture, y * linesize + x, y * linesize + x, len);
+          }
+        }
+      }
+    }
+    return dirtyCount;
+  }
+
+  /**
+   * @return number of changed tiles of the last update
+   */
+  public int dirtyCount() {
+    return dirtyCount;
+  }
+
+  public boolean isDirty(int column, int row) {
+    return dirty[row * columns + column];
+  }
+
+  /**
+   * @return pixel rectangles of horizontal runs of changed tiles of the last update
+   */
+  public List<Rectangle> dirtyRuns() {
+    List<Rectangle> runs = new ArrayList<>();
+    for (int r = 0; r < rows; r++) {
+      int c = 0;
+      while (c < columns) {
+        if (!dirty[r * columns + c]) {
+          ++c;
+          continue;
+        }
+        int first = c;
+        while (c < columns && dirty[r * columns + c]) {
+          ++c;
+        }
+        int x = first * tileSize;
+        int y = r * tileSize;
+        runs.add(new Rectangle(x, y, Math.min(width, c * tileSize) - x, Math.min(height, y + tileSize) - y));
+      }
+    }
+    return runs;
+  }
+
+  private void copy(ByteBuffer picture, int from, int to, int len) {
+    ByteBuffer src = picture.duplicate();
+    src.limit(from + len).position(from);
+    ByteBuffer dst = previous.duplicate();
+    dst.position(to);
+    dst.put(src);
+  }
+
+  private static boolean equal(ByteBuffer a, ByteBuffer b, int offset, int len) {
+    int i = 0;
+    for (; i + 8 <= len; i += 8) {
+      if (a.getLong(offset + i) != b.getLong(offset + i)) {
+        return false;
+      }
+    }
+    for (; i < len; i++) {
+      if (a.get(offset + i) != b.get(offset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
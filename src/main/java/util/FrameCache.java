@@ -0,0 +1,179 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * LRU cache of decoded frames under a byte budget.
+ *
+ * Frames are kept as references to the decoder's native buffers and grouped by the GOP they were
+ * decoded from; least recently used GOPs are evicted as a whole when the budget is exceeded.
+ * The references are pooled {@link FramePool} frames, so a warm cache does not allocate frames.
+ */
+public final class FrameCache {
+  /** AV_NUM_DATA_POINTERS, not exported by the presets */
+  private static final int NUM_DATA_POINTERS = 8;
+
+  private final long budget;
+
+  private final FramePool pool;
+
+  /** GOPs in access order */
+  private final LinkedHashMap<Key, Gop> gops = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** GOP of every cached frame */
+  private final Map<Key, Gop> frames = new HashMap<>();
+
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param budget maximum size of cached frame buffers in bytes
+   * @param pool pool of the frame references
+   */
+  public FrameCache(long budget, FramePool pool) {
+    this.budget = budget;
+    this.pool = pool;
+  }
+
+  /**
+   * @return cached frame, owned by the cache, or null
+   */
+  public AVFrame get(int stream, long pts) {
+    Gop gop = frames.get(new Key(stream, pts));
+    if (gop == null) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    gops.get(gop.key);
+    return gop.frames.get(pts);
+  }
+
+  /**
+   * Adds a new reference to the frame, the caller keeps its own reference
+   *
+   * @param keyframe pts of the keyframe the frame was decoded from
+   */
+  public void put(int stream, long keyframe, AVFrame frame) {
+    long pts = frame.best_effort_timestamp();
+    Key frameKey = new Key(stream, pts);
+    if (frames.containsKey(frameKey)) {
+      return;
+    }
+    Key gopKey = new Key(stream, keyframe);
+    Gop gop = gops.computeIfAbsent(gopKey, Gop::new);
+
+    AVFrame ref = pool.ref(frame);
+    long size = bufferSize(ref);
+    gop.frames.put(pts, ref);
+    gop.bytes += size;
+    bytes += size;
+    frames.put(frameKey, gop);
+
+    evict(gop);
+  }
+
+  public long hits() {
+    return hits;
+  }
+
+  public long misses() {
+    return misses;
+  }
+
+  /**
+   * @return number of evicted GOPs
+   */
+  public long evictions() {
+    return evictions;
+  }
+
+  /**
+   * @return size of cached frame buffers
+   */
+  public long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Frees all cached frames
+   */
+  public void clear() {
+    for (Gop gop : gops.values()) {
+      free(gop);
+    }
+    gops.clear();
+  }
+
+  private void evict(Gop current) {
+    Iterator<Gop> it = gops.values().iterator();
+    while (bytes > budget && it.hasNext()) {
+      Gop gop = it.next();
+      if (gop != current) {
+        it.remove();
+        free(gop);
+        ++evictions;
+      }
+    }
+  }
+
+  private void free(Gop gop) {
+    for (AVFrame frame : gop.frames.values()) {
+      frames.remove(new Key(gop.key.stream, frame.best_effort_timestamp()));
+      pool.release(frame);
+    }
+    bytes -= gop.bytes;
+  }
+
+  private static long bufferSize(AVFrame frame) {
+    long size = 0;
+    for (int i = 0; i < NUM_DATA_POINTERS; i++) {
+      AVBufferRef buf = frame.buf(i);
+      if (buf != null && !buf.isNull()) {
+        size += buf.size();
+      }
+    }
+    return size;
+  }
+
+  private static final class Gop {
+    private final Key key;
+    private final Map<Long, AVFrame> frames = new HashMap<>();
+    private long bytes;
+
+    private Gop(Key key) {
+      this.key = key;
+    }
+  }
+
+  private static final class Key {
+    private final int stream;
+    private final long pts;
+
+    private Key(int stream, long pts) {
+      this.stream = stream;
+      this.pts = pts;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return stream == key.stream && pts == key.pts;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(stream, pts);
+    }
+  }
+}
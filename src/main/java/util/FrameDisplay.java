@@ -0,0 +1,224 @@
+package util;
+
+import java.awt.Canvas;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_BGR24;
+
+/**
+ * Component that presents RGB frames at the source frame rate with a {@link BufferStrategy}.
+ *
+ * The producer fills one of three pooled frames and publishes it into a {@link FrameSlot}; a
+ * presenter thread takes the latest frame once per frame period and draws it outside of the event
+ * dispatch thread. Three frames are enough for the producer never to wait: one is being filled,
+ * one waits in the slot and one is being drawn.
+ *
+ * Every pooled frame remembers the rectangles changed while it was out of the producer's hands, so
+ * a producer that converts only changed regions can bring it up to date with {@link Frame#stale()}.
+ */
+public final class FrameDisplay extends Canvas {
+  private static final long serialVersionUID = 1L;
+
+  private static final int FRAMES = 3;
+
+  private final int width;
+  private final int height;
+  private final long periodNanos;
+  private final List<Frame> frames = new ArrayList<>();
+  private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<>();
+  private final FrameSlot<Frame> slot = new FrameSlot<>();
+  private Thread presenter;
+  private volatile boolean running;
+
+  /** frames drawn and frame periods without a new frame */
+  private volatile long presented;
+  private volatile long idlePeriods;
+
+  /**
+   * @param fps presentation rate, normally the frame rate of the source
+   */
+  public FrameDisplay(int width, int height, int fps) {
+    this.width = width;
+    this.height = height;
+    this.periodNanos = 1_000_000_000L / fps;
+    for (int i = 0; i < FRAMES; i++) {
+      Frame frame = new Frame(FrameImage.allocate(width, height, AV_PIX_FMT_BGR24));
+      frame.stale.add(new Rectangle(0, 0, width, height));
+      frames.add(frame);
+      freeFrames.add(frame);
+    }
+    setSize(width, height);
+    setIgnoreRepaint(true);
+  }
+
+  /**
+   * Starts presenting, the component must be displayable
+   */
+  public void start() {
+    createBufferStrategy(2);
+    running = true;
+    presenter = new Thread(this::presentLoop, "frame-presenter");
+    presenter.setDaemon(true);
+    presenter.start();
+  }
+
+  /**
+   * @return free frame to fill, never waits
+   */
+  public Frame acquire() {
+    return freeFrames.poll();
+  }
+
+  /**
+   * Returns a frame that is not published, for example because nothing has changed
+   */
+  public void release(Frame frame) {
+    freeFrames.add(frame);
+  }
+
+  /**
+   * Hands the filled frame to the presenter, replacing a frame that was not presented yet
+   *
+   * @param changed rectangles changed since the previous published frame
+   */
+  public void publish(Frame frame, List<Rectangle> changed) {
+    // the producer rewrote the stale and the changed rectangles of the frame
+    boolean whole = changed.size() == 1 && changed.get(0).width == width && changed.get(0).height == height;
+    if (!whole) {
+      for (Rectangle r : frame.stale) {
+        frame.image.toImage(r);
+      }
+    }
+    for (Rectangle r : changed) {
+      frame.image.toImage(r);
+    }
+    frame.stale.clear();
+    for (Frame other : frames) {
+      if (other != frame) {
+        other.addStale(changed, width, height);
+      }
+    }
+    Frame skipped = slot.publish(frame);
+    if (skipped != null) {
+      freeFrames.add(skipped);
+    }
+  }
+
+  public long published() {
+    return slot.published();
+  }
+
+  public long presented() {
+    return presented;
+  }
+
+  /**
+   * @return number of frames replaced by a newer one before they were presented
+   */
+  public long skipped() {
+    return slot.skipped();
+  }
+
+  /**
+   * @return number of frame periods without a new frame
+   */
+  public long idlePeriods() {
+    return idlePeriods;
+  }
+
+  /**
+   * Stops the presenter and frees the pooled frames
+   */
+  public void stop() {
+    running = false;
+    if (presenter != null) {
+      try {
+        presenter.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (Frame frame : frames) {
+      frame.image.free();
+    }
+  }
+
+  private void presentLoop() {
+    BufferStrategy strategy = getBufferStrategy();
+    long next = System.nanoTime();
+    while (running) {
+      next += periodNanos;
+      long delay = next - System.nanoTime();
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+        } catch (InterruptedException e) {
+          return;
+        }
+      } else {
+        // fell behind, do not try to catch up with a burst of frames
+        next = System.nanoTime();
+      }
+
+      Frame frame = slot.take();
+      if (frame == null) {
+        ++idlePeriods;
+        continue;
+      }
+      do {
+        do {
+          Graphics g = strategy.getDrawGraphics();
+          g.drawImage(frame.image.image(), 0, 0, null);
+          g.dispose();
+        } while (strategy.contentsRestored());
+        strategy.show();
+      } while (strategy.contentsLost());
+      Toolkit.getDefaultToolkit().sync();
+      ++presented;
+      freeFrames.add(frame);
+    }
+  }
+
+  /**
+   * Pooled RGB frame
+   */
+  public static final class Frame {
+    private final FrameImage image;
+
+    /** rectangles changed since the frame was filled last time, accessed by the producer only */
+    private final List<Rectangle> stale = new ArrayList<>();
+
+    private Frame(FrameImage image) {
+      this.image = image;
+    }
+
+    public FrameImage image() {
+      return image;
+    }
+
+    /**
+     * @return rectangles the frame missed while it was not being filled
+     */
+    public List<Rectangle> stale() {
+      return stale;
+    }
+
+    private void addStale(List<Rectangle> changed, int width, int height) {
+      if (stale.size() == 1 && stale.get(0).width == width && stale.get(0).height == height) {
+        return;
+      }
+      stale.addAll(changed);
+      // past a few hundred rectangles converting the whole picture is cheaper
+      if (stale.size() > 256) {
+        stale.clear();
+        stale.add(new Rectangle(0, 0, width, height));
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Packed RGB or gray {@code AVFrame} together with a heap {@link BufferedImage} of the same size.
+ *
+ * The image is a plain {@code TYPE_3BYTE_BGR}, {@code TYPE_INT_RGB} or {@code TYPE_BYTE_GRAY} image,
+ * so Java2D and ImageIO take their fast paths on it; a Java2D image over native memory goes through
+ * per-pixel accessors and is several times slower to draw and to encode. Pixels are moved between
+ * frame and image with bulk row copies, {@link #toImage()} after sws_scale wrote the frame and
+ * {@link #toFrame()} after Java2D drew the image. Rows are addressed with the frame linesize, so
+ * padding at the end of the rows is skipped.
+ */
+public final class FrameImage {
+  private final AVFrame frame;
+  private final BufferedImage image;
+
+  /** frame pixels, as ints for BGR0 */
+  private final ByteBuffer framePixels;
+  private final IntBuffer frameInts;
+
+  /** image pixels, as ints for BGR0 */
+  private final byte[] imagePixels;
+  private final int[] imageInts;
+
+  private final int bytesPerPixel;
+  private final int linesize;
+
+  private FrameImage(AVFrame frame) {
+    this.frame = frame;
+    int width = frame.width();
+    int height = frame.height();
+    linesize = frame.linesize(0);
+    framePixels = frame.data(0).capacity((long) linesize * height).asByteBuffer();
+    switch (frame.format()) {
+      case AV_PIX_FMT_BGR24:
+        bytesPerPixel = 3;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        break;
+      case AV_PIX_FMT_BGR0:
+        // little-endian B, G, R, 0 bytes are the 0x00RRGGBB ints of TYPE_INT_RGB
+        bytesPerPixel = 4;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        break;
+      case AV_PIX_FMT_GRAY8:
+        bytesPerPixel = 1;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        break;
+      default:
+        throw new IllegalArgumentException("unsupported pixel format: " + frame.format());
+    }
+    DataBuffer data = image.getRaster().getDataBuffer();
+    if (bytesPerPixel == 4) {
+      frameInts = framePixels.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      imageInts = ((DataBufferInt) data).getData();
+      imagePixels = null;
+    } else {
+      frameInts = null;
+      imageInts = null;
+      imagePixels = ((DataBufferByte) data).getData();
+    }
+  }
+
+  /**
+   * Allocates frame with 32-byte aligned rows.
+   *
+   * @param pixFmt AV_PIX_FMT_BGR24, AV_PIX_FMT_BGR0 or AV_PIX_FMT_GRAY8
+   */
+  public static FrameImage allocate(int width, int height, int pixFmt) {
+    AVFrame frame = av_frame_alloc();
+    frame.format(pixFmt);
+    frame.width(width);
+    frame.height(height);
+    int ret = av_frame_get_buffer(frame, 32);
+    if (ret < 0) {
+      av_frame_free(frame);
+      throw new RuntimeException("Could not allocate the video frame data");
+    }
+    return new FrameImage(frame);
+  }
+
+  public AVFrame frame() {
+    return frame;
+  }
+
+  /**
+   * @return image, as recent as the last {@link #toImage()}
+   */
+  public BufferedImage image() {
+    return image;
+  }
+
+  /**
+   * Copies the frame to the image
+   *
+   * @return image
+   */
+  public BufferedImage toImage() {
+    return toImage(0, 0, frame.width(), frame.height());
+  }
+
+  /**
+   * Copies a rectangle of the frame to the image
+   *
+   * @return image
+   */
+  public BufferedImage toImage(Rectangle r) {
+    return toImage(r.x, r.y, r.width, r.height);
+  }
+
+  /**
+   * Copies the image to the frame
+   */
+  public void toFrame() {
+    int width = frame.width();
+    int height = frame.height();
+    for (int y = 0; y < height; y++) {
+      if (imageInts != null) {
+        frameInts.position(y * linesize / 4);
+        frameInts.put(imageInts, y * width, width);
+      } else {
+        framePixels.position(y * linesize);
+        framePixels.put(imagePixels, y * width * bytesPerPixel, width * bytesPerPixel);
+      }
+    }
+  }
+
+  private BufferedImage toImage(int x, int y, int w, int h) {
+    int width = frame.width();
+    for (int row = y; row < y + h; row++) {
+      if (imageInts != null) {
+        frameInts.position(row * linesize / 4 + x);
+        frameInts.get(imageInts, row * width + x, w);
+      } else {
+        framePixels.position(row * linesize + x * bytesPerPixel);
+        framePixels.get(imagePixels, (row * width + x) * bytesPerPixel, w * bytesPerPixel);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Frees the frame
+   */
+  public void free() {
+    av_frame_free(frame);
+  }
+}
@@ -0,0 +1,178 @@
+package util;
+
+import org.bytedeco.javacpp.Loader;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Pool of {@code AVFrame}s.
+ *
+ * {@link #acquire(int, int, int)} hands out frames with their own buffers, pooled by format and
+ * size. {@link #ref(AVFrame)} hands out an empty pooled frame holding a new reference to the
+ * buffers of another frame, so a frame can be passed on without copying or cloning it. A pooled
+ * frame with buffers is reused only once no reference to its buffers is left, that is once it is
+ * writable again.
+ *
+ * Every frame is returned with {@link #release(AVFrame)}; {@link #print()} reports the frames that
+ * were never released and {@link #close()} frees the pool.
+ */
+public final class FramePool implements AutoCloseable {
+  private static final long FRAME_BYTES = Loader.sizeof(AVFrame.class);
+
+  private final String name;
+
+  /** released frames with buffers by format and size */
+  private final Map<Long, ArrayDeque<AVFrame>> frames = new HashMap<>();
+
+  /** buffer size of every frame with buffers, by address */
+  private final Map<Long, Long> bufferSizes = new HashMap<>();
+
+  /** released frames without buffers */
+  private final ArrayDeque<AVFrame> refs = new ArrayDeque<>();
+
+  /** frames handed out, by address, with the acquiring stack if tracing */
+  private final Map<Long, Throwable> leased = new HashMap<>();
+
+  private long allocated;
+  private long reused;
+
+  /**
+   * @param name name of the pool in reports
+   */
+  public FramePool(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return frame with buffers of the format and size, not necessarily cleared
+   */
+  public synchronized AVFrame acquire(int format, int width, int height) {
+    long key = ((long) format << 48) | ((long) width << 24) | height;
+    ArrayDeque<AVFrame> free = frames.computeIfAbsent(key, k -> new ArrayDeque<>());
+    AVFrame frame = null;
+    for (Iterator<AVFrame> it = free.iterator(); it.hasNext(); ) {
+      AVFrame f = it.next();
+      if (av_frame_is_writable(f) != 0) {
+        it.remove();
+        frame = f;
+        break;
+      }
+    }
+    if (frame == null) {
+      frame = av_frame_alloc();
+      frame.format(format);
+      frame.width(width);
+      frame.height(height);
+      if (av_frame_get_buffer(frame, 32) < 0) {
+        av_frame_free(frame);
+        throw new RuntimeException("Could not allocate the video frame data");
+      }
+      long size = FRAME_BYTES + av_image_get_buffer_size(format, width, height, 32);
+      bufferSizes.put(frame.address(), size);
+      NativeMemory.allocated("frames", size);
+      ++allocated;
+    } else {
+      ++reused;
+    }
+    lease(frame);
+    return frame;
+  }
+
+  /**
+   * @return pooled frame referencing the buffers and properties of the source frame
+   */
+  public synchronized AVFrame ref(AVFrame src) {
+    AVFrame frame = refs.poll();
+    if (frame == null) {
+      frame = av_frame_alloc();
+      NativeMemory.allocated("frame refs", FRAME_BYTES);
+      ++allocated;
+    } else {
+      ++reused;
+    }
+    if (av_frame_ref(frame, src) < 0) {
+      refs.add(frame);
+      throw new RuntimeException("Could not reference the frame");
+    }
+    lease(frame);
+    return frame;
+  }
+
+  /**
+   * Returns the frame to the pool, a frame from {@link #ref(AVFrame)} drops its reference
+   */
+  public synchronized void release(AVFrame frame) {
+    if (!leased.containsKey(frame.address())) {
+      throw new IllegalArgumentException("frame was not acquired from " + name);
+    }
+    leased.remove(frame.address());
+    if (bufferSizes.containsKey(frame.address())) {
+      frames.get(((long) frame.format() << 48) | ((long) frame.width() << 24) | frame.height()).add(frame);
+    } else {
+      av_frame_unref(frame);
+      refs.add(frame);
+    }
+  }
+
+  /**
+   * @return number of frames allocated by the pool
+   */
+  public synchronized long allocated() {
+    return allocated;
+  }
+
+  /**
+   * @return number of times a released frame was handed out again
+   */
+  public synchronized long reused() {
+    return reused;
+  }
+
+  /**
+   * @return number of frames handed out and not released
+   */
+  public synchronized int leased() {
+    return leased.size();
+  }
+
+  /**
+   * Prints the pool statistics, and where the frames not released were acquired if they are traced
+   */
+  public synchronized void print() {
+    System.out.println(String.format("%s: %d frames allocated, %d reused, %d not released",
+        name, allocated, reused, leased.size()));
+    for (Throwable trace : leased.values()) {
+      if (trace != null) {
+        trace.printStackTrace(System.out);
+      }
+    }
+  }
+
+  /**
+   * Frees the released frames, the others are left alone as they may be in use
+   */
+  @Override
+  public synchronized void close() {
+    for (ArrayDeque<AVFrame> free : frames.values()) {
+      for (AVFrame frame : free) {
+        NativeMemory.freed("frames", bufferSizes.remove(frame.address()));
+        av_frame_free(frame);
+      }
+      free.clear();
+    }
+    for (AVFrame frame : refs) {
+      NativeMemory.freed("frame refs", FRAME_BYTES);
+      av_frame_free(frame);
+    }
+    refs.clear();
+  }
+
+  private void lease(AVFrame frame) {
+    leased.put(frame.address(), NativeMemory.TRACE ? new Throwable(name + " frame acquired") : null);
+  }
+}
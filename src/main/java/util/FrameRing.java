@@ -0,0 +1,99 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Ring of pre-allocated items passed from several producers to one consumer in sequence order.
+ *
+ * Sequence {@code n} always uses slot {@code n % size}. A producer claims the slot for its sequence
+ * number, fills it and publishes it; the consumer takes sequences one by one and releases each slot
+ * once it no longer needs its contents. A failed producer or consumer aborts the ring, so the
+ * others stop waiting for it and fail with its exception as the cause.
+ */
+public final class FrameRing<T> {
+  private final T[] slots;
+
+  /** sequence number published in each slot, -1 if none */
+  private final long[] published;
+
+  /** sequences below this one are released by the consumer */
+  private long released;
+
+  /** failure that aborted the ring, null while it runs */
+  private Throwable failure;
+
+  public FrameRing(T[] slots) {
+    this.slots = slots;
+    this.published = new long[slots.length];
+    Arrays.fill(published, -1);
+  }
+
+  /**
+   * Waits until the slot of the sequence is released by the consumer
+   *
+   * @return slot item to fill
+   */
+  public synchronized T claim(long seq) throws InterruptedException {
+    while (seq - released >= slots.length) {
+      checkFailure();
+      wait();
+    }
+    return slots[index(seq)];
+  }
+
+  /**
+   * Makes filled slot available to the consumer
+   */
+  public synchronized void publish(long seq) {
+    published[index(seq)] = seq;
+    notifyAll();
+  }
+
+  /**
+   * Waits until the sequence is published
+   */
+  public synchronized T take(long seq) throws InterruptedException {
+    while (published[index(seq)] != seq) {
+      checkFailure();
+      wait();
+    }
+    return slots[index(seq)];
+  }
+
+  /**
+   * Returns the slot of the sequence to producers, sequences must be released in order
+   */
+  public synchronized void release(long seq) {
+    released = seq + 1;
+    notifyAll();
+  }
+
+  /**
+   * Wakes up the waiting producers and consumer, which fail from now on instead of waiting
+   *
+   * @param cause failure of a producer or of the consumer, only the first one is kept
+   */
+  public synchronized void abort(Throwable cause) {
+    if (failure == null) {
+      failure = cause;
+    }
+    notifyAll();
+  }
+
+  /**
+   * @return all slot items
+   */
+  public T[] slots() {
+    return slots;
+  }
+
+  private void checkFailure() {
+    if (failure != null) {
+      throw new IllegalStateException("frame ring aborted", failure);
+    }
+  }
+
+  private int index(long seq) {
+    return (int) (seq % slots.length);
+  }
+}
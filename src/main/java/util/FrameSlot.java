@@ -0,0 +1,46 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free hand-over of the latest frame from a producer to a consumer.
+ *
+ * Publishing replaces a frame the consumer has not taken yet; the replaced frame is returned to
+ * the producer and counted as skipped. Neither side ever waits for the other.
+ */
+public final class FrameSlot<T> {
+  private final AtomicReference<T> latest = new AtomicReference<>();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  /**
+   * @return replaced frame that was never taken, or null
+   */
+  public T publish(T frame) {
+    published.incrementAndGet();
+    T replaced = latest.getAndSet(frame);
+    if (replaced != null) {
+      skipped.incrementAndGet();
+    }
+    return replaced;
+  }
+
+  /**
+   * @return latest published frame, or null if there is no new one
+   */
+  public T take() {
+    return latest.getAndSet(null);
+  }
+
+  public long published() {
+    return published.get();
+  }
+
+  /**
+   * @return number of frames replaced before they were taken
+   */
+  public long skipped() {
+    return skipped.get();
+  }
+}
@@ -0,0 +1,94 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of nanosecond durations with log-linear buckets.
+ *
+ * Every power of two is split into 16 buckets, so a percentile is off by at most 1/32 of its
+ * value. Recording increments one counter of a fixed array and never allocates; any number of
+ * threads may record while another one reads.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB = 1 << (SUB_BITS - 1);
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB + 2 * SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    long m;
+    while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+      // another thread raised the maximum, try again
+    }
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long sumNanos() {
+    return sum.get();
+  }
+
+  public long maxNanos() {
+    return max.get();
+  }
+
+  public double meanNanos() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @param p percentile, 0 to 100
+   * @return middle of the bucket holding the percentile, 0 if nothing was recorded
+   */
+  public long percentileNanos(double p) {
+    long n = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        long lower = lowerBound(i);
+        return Math.min(lower + (lowerBound(i + 1) - lower) / 2, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int bucket(long nanos) {
+    if (nanos < 2 * SUB) {
+      return (int) nanos;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - (SUB_BITS - 1);
+    return shift * SUB + (int) (nanos >>> shift);
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < 2 * SUB) {
+      return bucket;
+    }
+    int shift = bucket / SUB - 1;
+    return (long) (bucket % SUB + SUB) << shift;
+  }
+}
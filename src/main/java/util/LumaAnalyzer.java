@@ -0,0 +1,485 @@
+package util;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Per-frame statistics of the luma plane: histogram, mean, variance, share of black pixels and the
+ * difference to the previous frame, with black, frozen and scene cut flags. Results of every frame
+ * are appended to a CSV or binary timeline.
+ *
+ * The Y plane is read straight from the decoded frame, no pixel format conversion is done. Rows are
+ * split into horizontal bands analyzed in parallel, like {@link SliceScaler}, by band threads started
+ * once and handed each frame through a reused countdown; histograms, plane copies and output buffers
+ * are allocated once, so analyzing a frame allocates nothing.
+ *
+ * The binary timeline starts with the ASCII magic {@code LUMA} and the little-endian ints width,
+ * height and {@link #BINS}, followed by one {@value #RECORD_BYTES} byte record per frame: pts in
+ * milliseconds (long), mean, variance, black ratio, mean absolute difference and histogram distance
+ * (floats), flags (int) and the {@link #BINS} bins of the histogram as fractions of 65535 (shorts).
+ */
+public final class LumaAnalyzer implements AutoCloseable {
+  /** flag of a frame with almost only black pixels */
+  public static final int BLACK = 1;
+
+  /** flag of a frame that hardly differs from the previous one */
+  public static final int FROZEN = 2;
+
+  /** flag of a frame whose histogram differs a lot from the previous one */
+  public static final int CUT = 4;
+
+  /** bins of the histogram in the binary timeline */
+  public static final int BINS = 16;
+
+  private static final int RECORD_BYTES = 64;
+
+  /** highest black luma, 10% of the video range above 16 */
+  private static final int BLACK_LUMA = 38;
+
+  /** share of black pixels of a black frame */
+  private static final double BLACK_RATIO = 0.98;
+
+  /** mean absolute difference to the previous frame below which the frame is frozen */
+  private static final double FROZEN_DIFFERENCE = 0.5;
+
+  /** histogram distance to the previous frame above which the frame starts a new scene */
+  private static final double CUT_DISTANCE = 0.4;
+
+  private final int format;
+  private final int width;
+  private final int height;
+
+  /** offset of the plane pointers in an AVFrame */
+  private static final int DATA_OFFSET = Loader.offsetof(AVFrame.class, "data");
+
+  /** views moved to the plane pointers and the luma plane of every frame, so reading a plane does not allocate */
+  private final MovablePointer framePlanes = new MovablePointer();
+  private final MovablePointer plane = new MovablePointer();
+
+  /** luma of the current and of the previous frame, without padding */
+  private byte[] current;
+  private byte[] previous;
+  private boolean hasPrevious;
+
+  private final int[] bandY;
+  private final int[] bandHeight;
+  private final int[][] bandHistograms;
+  private final long[] bandDifferences;
+
+  /** threads of the bands after the first, which is analyzed by the caller */
+  private final Thread[] bandThreads;
+  /** incremented for every frame, band threads wait for it to change */
+  private volatile int generation;
+  /** band threads still analyzing the frame, the last one wakes the waiter */
+  private final AtomicInteger pending = new AtomicInteger();
+  private volatile Thread waiter;
+  private volatile Throwable bandFailure;
+  private volatile boolean closed;
+
+  /** histograms of the current and of the previous frame */
+  private int[] histogram = new int[256];
+  private int[] previousHistogram = new int[256];
+
+  private double mean;
+  private double variance;
+  private double blackRatio;
+  private double difference;
+  private double histogramDistance;
+  private int flags;
+
+  private long frames;
+  private long blackFrames;
+  private long frozenFrames;
+  private long cuts;
+
+  /** timeline: text for CSV, channel and record buffer for binary */
+  private final Writer csv;
+  private final StringBuilder line = new StringBuilder(256);
+  private final char[] lineChars = new char[256];
+  private final FileChannel channel;
+  private final ByteBuffer records;
+
+  /**
+   * @param format 8 bit yuv or gray format of the frames
+   * @param timeline CSV file if the name ends with .csv, binary timeline otherwise
+   * @param slices number of bands, 0 for one per available core
+   */
+  public LumaAnalyzer(int format, int width, int height, File timeline, int slices) throws IOException {
+    AVPixFmtDescriptor desc = av_pix_fmt_desc_get(format);
+    if (desc == null || desc.comp(0).depth() != 8 || desc.comp(0).step() != 1
+        || (desc.flags() & (AV_PIX_FMT_FLAG_RGB | AV_PIX_FMT_FLAG_HWACCEL)) != 0) {
+      throw new IOException("no 8 bit luma plane in " + av_get_pix_fmt_name(format).getString());
+    }
+    this.format = format;
+    this.width = width;
+    this.height = height;
+    current = new byte[width * height];
+    previous = new byte[width * height];
+
+    int n = Math.max(1, Math.min(slices > 0 ? slices : Runtime.getRuntime().availableProcessors(), height));
+    bandY = new int[n];
+    bandHeight = new int[n];
+    bandHistograms = new int[n][4 * 256];
+    bandDifferences = new long[n];
+    for (int i = 0; i < n; i++) {
+      bandY[i] = height * i / n;
+      bandHeight[i] = height * (i + 1) / n - bandY[i];
+    }
+    bandThreads = new Thread[n - 1];
+    for (int i = 1; i < n; i++) {
+      int band = i;
+      Thread t = new Thread(() -> bandLoop(band), "luma-analyzer-" + i);
+      t.setDaemon(true);
+      bandThreads[i - 1] = t;
+      t.start();
+    }
+
+    if (timeline.getName().endsWith(".csv")) {
+      csv = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(timeline), StandardCharsets.US_ASCII), 1 << 16);
+      csv.write("frame,pts_ms,mean,variance,black_ratio,difference,histogram_distance,black,frozen,cut\n");
+      channel = null;
+      records = null;
+    } else {
+      csv = null;
+      channel = FileChannel.open(timeline.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      records = ByteBuffer.allocateDirect(1024 * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      records.put("LUMA".getBytes(StandardCharsets.US_ASCII)).putInt(width).putInt(height).putInt(BINS);
+    }
+  }
+
+  /**
+   * Analyzes the luma plane of the frame, which must have the format and size of the analyzer, and appends the
+   * results to the timeline
+   */
+  public void analyze(AVFrame frame, long ptsMillis) throws IOException {
+    if (frame.format() != format || frame.width() != width || frame.height() != height) {
+      throw new IOException(String.format("frame %dx%d %d does not match the analyzer %dx%d %d",
+          frame.width(), frame.height(), frame.format(), width, height, format));
+    }
+    byte[] swap = previous;
+    previous = current;
+    current = swap;
+    int linesize = frame.linesize(0);
+    plane.moveTo(framePlanes.moveTo(frame.address() + DATA_OFFSET).getLong(0));
+    if (linesize == width) {
+      plane.get(current, 0, current.length);
+    } else {
+      for (int y = 0; y < height; y++) {
+        plane.position((long) y * linesize).get(current, y * width, width);
+      }
+    }
+
+    if (bandThreads.length > 0) {
+      waiter = Thread.currentThread();
+      pending.set(bandThreads.length);
+      ++generation;
+      for (Thread t : bandThreads) {
+        LockSupport.unpark(t);
+      }
+    }
+    analyzeBand(0);
+    awaitBands();
+    summarize();
+    hasPrevious = true;
+    ++frames;
+    append(ptsMillis);
+  }
+
+  /**
+   * Loop of a band thread: waits for the next frame, analyzes its band and counts down, until closed
+   */
+  private void bandLoop(int band) {
+    int seen = 0;
+    while (true) {
+      while (generation == seen && !closed) {
+        LockSupport.park(this);
+      }
+      if (closed) {
+        return;
+      }
+      ++seen;
+      try {
+        analyzeBand(band);
+      } catch (Throwable e) {
+        bandFailure = e;
+      }
+      if (pending.decrementAndGet() == 0) {
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+
+  /**
+   * Waits until every band thread has analyzed the frame. The bands read the frame buffers, so an
+   * interrupt does not cut the wait short and is only restored afterwards.
+   */
+  private void awaitBands() throws IOException {
+    boolean interrupted = false;
+    while (pending.get() != 0) {
+      LockSupport.park(this);
+      interrupted |= Thread.interrupted();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    Throwable failure = bandFailure;
+    if (failure != null) {
+      bandFailure = null;
+      throw new IOException("luma analysis failed", failure);
+    }
+  }
+
+  /**
+   * Histogram of the band and the sum of absolute differences to the previous frame. Four
+   * histograms are filled in turn so that runs of equal pixels do not wait for each other's
+   * increments; the difference of a row is summed in an int, which the JIT can vectorize.
+   */
+  private void analyzeBand(int band) {
+    int[] h = bandHistograms[band];
+    Arrays.fill(h, 0);
+    byte[] cur = current;
+    byte[] prev = previous;
+    int start = bandY[band] * width;
+    int end = start + bandHeight[band] * width;
+    int p = start;
+    for (; p + 3 < end; p += 4) {
+      h[cur[p] & 0xff]++;
+      h[256 + (cur[p + 1] & 0xff)]++;
+      h[512 + (cur[p + 2] & 0xff)]++;
+      h[768 + (cur[p + 3] & 0xff)]++;
+    }
+    for (; p < end; p++) {
+      h[cur[p] & 0xff]++;
+    }
+
+    long sad = 0;
+    if (hasPrevious) {
+      for (int row = start; row < end; row += width) {
+        int rowSad = 0;
+        for (int i = row; i < row + width; i++) {
+          rowSad += Math.abs((cur[i] & 0xff) - (prev[i] & 0xff));
+        }
+        sad += rowSad;
+      }
+    }
+    bandDifferences[band] = sad;
+  }
+
+  /**
+   * Merges the bands and derives the statistics and flags of the frame from its histogram
+   */
+  private void summarize() {
+    int[] swap = previousHistogram;
+    previousHistogram = histogram;
+    histogram = swap;
+    Arrays.fill(histogram, 0);
+    long sad = 0;
+    for (int i = 0; i < bandHistograms.length; i++) {
+      int[] h = bandHistograms[i];
+      for (int v = 0; v < 256; v++) {
+        histogram[v] += h[v] + h[256 + v] + h[512 + v] + h[768 + v];
+      }
+      sad += bandDifferences[i];
+    }
+
+    double pixels = (double) width * height;
+    long sum = 0;
+    long sumSquares = 0;
+    long black = 0;
+    long distance = 0;
+    for (int v = 0; v < 256; v++) {
+      long count = histogram[v];
+      sum += count * v;
+      sumSquares += count * v * v;
+      if (v <= BLACK_LUMA) {
+        black += count;
+      }
+      distance += Math.abs(count - previousHistogram[v]);
+    }
+    mean = sum / pixels;
+    variance = sumSquares / pixels - mean * mean;
+    blackRatio = black / pixels;
+    difference = hasPrevious ? sad / pixels : 0;
+    histogramDistance = hasPrevious ? distance / (2 * pixels) : 0;
+
+    flags = 0;
+    if (blackRatio >= BLACK_RATIO) {
+      flags |= BLACK;
+      ++blackFrames;
+    }
+    if (hasPrevious && difference < FROZEN_DIFFERENCE) {
+      flags |= FROZEN;
+      ++frozenFrames;
+    }
+    if (hasPrevious && histogramDistance > CUT_DISTANCE) {
+      flags |= CUT;
+      ++cuts;
+    }
+  }
+
+  /**
+   * Appends the results of the last frame to the timeline, formatted into reused buffers
+   */
+  private void append(long ptsMillis) throws IOException {
+    if (csv != null) {
+      line.setLength(0);
+      line.append(frames - 1).append(',').append(ptsMillis).append(',');
+      appendFixed(mean);
+      line.append(',');
+      appendFixed(variance);
+      line.append(',');
+      appendFixed(blackRatio);
+      line.append(',');
+      appendFixed(difference);
+      line.append(',');
+      appendFixed(histogramDistance);
+      line.append(',').append(flags & BLACK).append(',').append((flags & FROZEN) >> 1)
+          .append(',').append((flags & CUT) >> 2).append('\n');
+      int length = line.length();
+      line.getChars(0, length, lineChars, 0);
+      csv.write(lineChars, 0, length);
+      return;
+    }
+    if (records.remaining() < RECORD_BYTES) {
+      flushRecords();
+    }
+    records.putLong(ptsMillis).putFloat((float) mean).putFloat((float) variance).putFloat((float) blackRatio)
+        .putFloat((float) difference).putFloat((float) histogramDistance).putInt(flags);
+    double pixels = (double) width * height;
+    for (int b = 0; b < BINS; b++) {
+      long count = 0;
+      for (int v = b * 256 / BINS; v < (b + 1) * 256 / BINS; v++) {
+        count += histogram[v];
+      }
+      records.putShort((short) Math.round(count * 65535 / pixels));
+    }
+  }
+
+  /**
+   * Appends the value with three decimals without going through a String
+   */
+  private void appendFixed(double value) {
+    long scaled = Math.round(value * 1000);
+    if (scaled < 0) {
+      line.append('-');
+      scaled = -scaled;
+    }
+    long fraction = scaled % 1000;
+    line.append(scaled / 1000).append('.');
+    if (fraction < 100) {
+      line.append('0');
+    }
+    if (fraction < 10) {
+      line.append('0');
+    }
+    line.append(fraction);
+  }
+
+  private void flushRecords() throws IOException {
+    records.flip();
+    while (records.hasRemaining()) {
+      channel.write(records);
+    }
+    records.clear();
+  }
+
+  public double mean() {
+    return mean;
+  }
+
+  public double variance() {
+    return variance;
+  }
+
+  /**
+   * @return share of pixels not brighter than black
+   */
+  public double blackRatio() {
+    return blackRatio;
+  }
+
+  /**
+   * @return mean absolute luma difference to the previous frame, 0 for the first frame
+   */
+  public double difference() {
+    return difference;
+  }
+
+  /**
+   * @return half the L1 distance between the normalized histograms of this and the previous frame, from 0 to 1
+   */
+  public double histogramDistance() {
+    return histogramDistance;
+  }
+
+  /**
+   * @return {@link #BLACK}, {@link #FROZEN} and {@link #CUT} flags of the last frame
+   */
+  public int flags() {
+    return flags;
+  }
+
+  /**
+   * @return 256 bin histogram of the last frame, owned by the analyzer
+   */
+  public int[] histogram() {
+    return histogram;
+  }
+
+  public long frames() {
+    return frames;
+  }
+
+  public long blackFrames() {
+    return blackFrames;
+  }
+
+  public long frozenFrames() {
+    return frozenFrames;
+  }
+
+  public long cuts() {
+    return cuts;
+  }
+
+  /**
+   * Flushes and closes the timeline
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (Thread t : bandThreads) {
+      LockSupport.unpark(t);
+    }
+    if (csv != null) {
+      csv.close();
+    } else {
+      flushRecords();
+      channel.close();
+    }
+  }
+
+  /**
+   * Byte pointer whose address is set in place instead of allocating a new pointer
+   */
+  private static final class MovablePointer extends BytePointer {
+    MovablePointer moveTo(long address) {
+      this.address = address;
+      this.position = 0;
+      return this;
+    }
+  }
+}
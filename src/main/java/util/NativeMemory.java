@@ -0,0 +1,74 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live native objects and bytes allocated by the {@link FramePool}s and {@link PacketPool}s, by kind.
+ *
+ * The number of allocations stops growing once the pools have warmed up, so comparing
+ * {@link #allocations()} before and after a stretch of frames shows whether the steady state
+ * allocates. With {@code -Dutil.pool.trace=true} the pools remember where every object not yet
+ * released was acquired, and print those stacks with their statistics.
+ */
+public final class NativeMemory {
+  static final boolean TRACE = Boolean.getBoolean("util.pool.trace");
+
+  private static final Map<String, Account> ACCOUNTS = new ConcurrentSkipListMap<>();
+
+  private NativeMemory() {}
+
+  static void allocated(String kind, long bytes) {
+    Account account = ACCOUNTS.computeIfAbsent(kind, k -> new Account());
+    account.allocations.incrementAndGet();
+    account.live.incrementAndGet();
+    account.bytes.addAndGet(bytes);
+  }
+
+  static void freed(String kind, long bytes) {
+    Account account = ACCOUNTS.get(kind);
+    account.live.decrementAndGet();
+    account.bytes.addAndGet(-bytes);
+  }
+
+  /**
+   * @return number of native objects allocated so far
+   */
+  public static long allocations() {
+    long n = 0;
+    for (Account account : ACCOUNTS.values()) {
+      n += account.allocations.get();
+    }
+    return n;
+  }
+
+  /**
+   * @return bytes of native objects not freed yet
+   */
+  public static long liveBytes() {
+    long n = 0;
+    for (Account account : ACCOUNTS.values()) {
+      n += account.bytes.get();
+    }
+    return n;
+  }
+
+  /**
+   * Prints the totals and the live objects and bytes of every kind
+   */
+  public static void print() {
+    System.out.println(String.format("native memory: %d allocations, %d live bytes", allocations(), liveBytes()));
+    for (Map.Entry<String, Account> e : ACCOUNTS.entrySet()) {
+      Account account = e.getValue();
+      System.out.println(String.format("native %s: %d allocated, %d live, %d live bytes",
+          e.getKey(), account.allocations.get(), account.live.get(), account.bytes.get()));
+    }
+  }
+
+  private static final class Account {
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong live = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+  }
+}
@@ -0,0 +1,267 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Packets of one stream in demuxing order: pts, byte position, size and keyframe flag.
+ *
+ * The index is kept in a sidecar file, by default next to the media file, and memory-mapped on load.
+ * Layout: 40 byte header (magic, version, media file size and modification time, stream index,
+ * time base, number of packets) followed by 24 byte entries (pts, pos, size, flags).
+ */
+public final class PacketIndex {
+  private static final int MAGIC = 0x50494458;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 40;
+  private static final int ENTRY_SIZE = 24;
+  private static final int FLAG_KEY = 1;
+
+  private final ByteBuffer entries;
+  private final int streamIndex;
+  private final int timebaseNum;
+  private final int timebaseDen;
+  private final int size;
+
+  /** entry numbers of keyframes, sorted by pts */
+  private final int[] keyframes;
+
+  private PacketIndex(ByteBuffer buffer) {
+    streamIndex = buffer.getInt(24);
+    timebaseNum = buffer.getInt(28);
+    timebaseDen = buffer.getInt(32);
+    size = buffer.getInt(36);
+    buffer.position(HEADER_SIZE);
+    entries = buffer.slice();
+
+    int nKeyframes = 0;
+    int[] keys = new int[16];
+    for (int i = 0; i < size; i++) {
+      if (isKeyframe(i)) {
+        if (nKeyframes == keys.length) {
+          keys = Arrays.copyOf(keys, 2 * nKeyframes);
+        }
+        keys[nKeyframes++] = i;
+      }
+    }
+    keyframes = Arrays.copyOf(keys, nKeyframes);
+  }
+
+  /**
+   * @return index file of the media file
+   */
+  public static File sidecar(File media) {
+    return new File(media.getPath() + ".idx");
+  }
+
+  /**
+   * @return memory-mapped index of the media file, or null if there is no index or the media file has changed
+   */
+  public static PacketIndex load(File media) throws IOException {
+    return load(media, sidecar(media));
+  }
+
+  /**
+   * @param file index file of the media file
+   * @return memory-mapped index of the media file, or null if there is no index or the media file has changed
+   */
+  public static PacketIndex load(File media, File file) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (ch.size() < HEADER_SIZE) {
+        return null;
+      }
+      buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+    }
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+        buffer.getLong(8) != media.length() || buffer.getLong(16) != media.lastModified() ||
+        buffer.capacity() != HEADER_SIZE + (long) ENTRY_SIZE * buffer.getInt(36)) {
+      return null;
+    }
+    return new PacketIndex(buffer);
+  }
+
+  public int streamIndex() {
+    return streamIndex;
+  }
+
+  public int timebaseNum() {
+    return timebaseNum;
+  }
+
+  public int timebaseDen() {
+    return timebaseDen;
+  }
+
+  /**
+   * @return number of packets
+   */
+  public int size() {
+    return size;
+  }
+
+  public long pts(int i) {
+    return entries.getLong(i * ENTRY_SIZE);
+  }
+
+  public long pos(int i) {
+    return entries.getLong(i * ENTRY_SIZE + 8);
+  }
+
+  public int packetSize(int i) {
+    return entries.getInt(i * ENTRY_SIZE + 16);
+  }
+
+  public boolean isKeyframe(int i) {
+    return (entries.getInt(i * ENTRY_SIZE + 20) & FLAG_KEY) != 0;
+  }
+
+  /**
+   * @return number of keyframes
+   */
+  public int keyframeCount() {
+    return keyframes.length;
+  }
+
+  /**
+   * @return entry number of the n-th keyframe
+   */
+  public int keyframe(int n) {
+    return keyframes[n];
+  }
+
+  /**
+   * @return number of the last keyframe with pts not greater than the given one, -1 if there is none
+   */
+  public int keyframeBefore(long pts) {
+    int lo = 0;
+    int hi = keyframes.length - 1;
+    int found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (pts(keyframes[mid]) <= pts) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return entry number of the packet shown at the given pts, i.e. the one with the greatest pts
+   *         not greater than the given one, -1 if there is none
+   */
+  public int frameAt(long pts) {
+    int k = keyframeBefore(pts);
+    if (k < 0) {
+      return -1;
+    }
+    // frames of a GOP may be stored after the next keyframe, so look two keyframes ahead
+    int end = k + 2 < keyframes.length ? keyframes[k + 2] : size;
+    int found = -1;
+    for (int i = keyframes[k]; i < end; i++) {
+      long p = pts(i);
+      if (p <= pts && (found < 0 || p > pts(found))) {
+        found = i;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Collects packets of the first pass and writes the index file
+   */
+  public static final class Builder {
+    private final int streamIndex;
+    private final int timebaseNum;
+    private final int timebaseDen;
+    private ByteBuffer entries = ByteBuffer.allocate(1024 * ENTRY_SIZE);
+
+    public Builder(int streamIndex, int timebaseNum, int timebaseDen) {
+      this.streamIndex = streamIndex;
+      this.timebaseNum = timebaseNum;
+      this.timebaseDen = timebaseDen;
+    }
+
+    public void add(long pts, long pos, int size, boolean keyframe) {
+      if (entries.remaining() < ENTRY_SIZE) {
+        ByteBuffer bigger = ByteBuffer.allocate(2 * entries.capacity());
+        entries.flip();
+        bigger.put(entries);
+        entries = bigger;
+      }
+      entries.putLong(pts);
+      entries.putLong(pos);
+      entries.putInt(size);
+      entries.putInt(keyframe ? FLAG_KEY : 0);
+    }
+
+    /**
+     * @return index of the collected packets, held in memory
+     */
+    public PacketIndex build(File media) {
+      ByteBuffer data = entries.duplicate();
+      data.flip();
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.remaining());
+      buffer.put(header(media));
+      buffer.put(data);
+      buffer.flip();
+      return new PacketIndex(buffer);
+    }
+
+    /**
+     * Writes sidecar index of the media file, replacing the old one
+     */
+    public void write(File media) throws IOException {
+      write(media, sidecar(media));
+    }
+
+    /**
+     * Writes index of the media file to the file, replacing the old one
+     */
+    public void write(File media, File file) throws IOException {
+      ByteBuffer header = header(media);
+      File tmp = new File(file.getPath() + ".tmp");
+      ByteBuffer data = entries.duplicate();
+      data.flip();
+      try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+        raf.setLength(0);
+        FileChannel ch = raf.getChannel();
+        while (header.hasRemaining()) {
+          ch.write(header);
+        }
+        while (data.hasRemaining()) {
+          ch.write(data);
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ByteBuffer header(File media) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putLong(media.length());
+      header.putLong(media.lastModified());
+      header.putInt(streamIndex);
+      header.putInt(timebaseNum);
+      header.putInt(timebaseDen);
+      header.putInt(entries.position() / ENTRY_SIZE);
+      header.flip();
+      return header;
+    }
+  }
+}
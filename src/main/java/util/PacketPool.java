@@ -0,0 +1,118 @@
+package util;
+
+import org.bytedeco.javacpp.Loader;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.avcodec.*;
+
+/**
+ * Pool of {@code AVPacket}s.
+ *
+ * {@link #ref(AVPacket)} hands out a pooled packet holding a new reference to the data of another
+ * packet, which replaces {@code av_packet_clone} without allocating a packet every time.
+ * {@link #release(AVPacket)} drops the reference and returns the packet; {@link #print()} reports
+ * the packets that were never released and {@link #close()} frees the pool.
+ */
+public final class PacketPool implements AutoCloseable {
+  private static final long PACKET_BYTES = Loader.sizeof(AVPacket.class);
+
+  private final String name;
+
+  /** released packets */
+  private final ArrayDeque<AVPacket> packets = new ArrayDeque<>();
+
+  /** packets handed out, by address, with the acquiring stack if tracing */
+  private final Map<Long, Throwable> leased = new HashMap<>();
+
+  private long allocated;
+  private long reused;
+
+  /**
+   * @param name name of the pool in reports
+   */
+  public PacketPool(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return empty packet
+   */
+  public synchronized AVPacket acquire() {
+    AVPacket packet = packets.poll();
+    if (packet == null) {
+      packet = av_packet_alloc();
+      NativeMemory.allocated("packets", PACKET_BYTES);
+      ++allocated;
+    } else {
+      ++reused;
+    }
+    leased.put(packet.address(), NativeMemory.TRACE ? new Throwable(name + " packet acquired") : null);
+    return packet;
+  }
+
+  /**
+   * @return pooled packet referencing the data and properties of the source packet
+   */
+  public AVPacket ref(AVPacket src) {
+    AVPacket packet = acquire();
+    if (av_packet_ref(packet, src) < 0) {
+      release(packet);
+      throw new RuntimeException("Could not reference the packet");
+    }
+    return packet;
+  }
+
+  /**
+   * Drops the data reference of the packet and returns it to the pool
+   */
+  public synchronized void release(AVPacket packet) {
+    if (!leased.containsKey(packet.address())) {
+      throw new IllegalArgumentException("packet was not acquired from " + name);
+    }
+    leased.remove(packet.address());
+    av_packet_unref(packet);
+    packets.add(packet);
+  }
+
+  /**
+   * @return number of packets allocated by the pool
+   */
+  public synchronized long allocated() {
+    return allocated;
+  }
+
+  /**
+   * @return number of times a released packet was handed out again
+   */
+  public synchronized long reused() {
+    return reused;
+  }
+
+  /**
+   * Prints the pool statistics, and where the packets not released were acquired if they are traced
+   */
+  public synchronized void print() {
+    System.out.println(String.format("%s: %d packets allocated, %d reused, %d not released",
+        name, allocated, reused, leased.size()));
+    for (Throwable trace : leased.values()) {
+      if (trace != null) {
+        trace.printStackTrace(System.out);
+      }
+    }
+  }
+
+  /**
+   * Frees the released packets, the others are left alone as they may be in use
+   */
+  @Override
+  public synchronized void close() {
+    for (AVPacket packet : packets) {
+      NativeMemory.freed("packets", PACKET_BYTES);
+      av_packet_free(packet);
+    }
+    packets.clear();
+  }
+}
@@ -0,0 +1,85 @@
+package util;
+
+/**
+ * Timing probe of one pipeline stage.
+ *
+ * <pre>
+ *   long t0 = probe.begin();
+ *   stage();
+ *   probe.end(t0);
+ * </pre>
+ *
+ * While probes are disabled {@link #begin()} returns 0 without reading the clock and
+ * {@link #end(long)} returns at once. Probes are created by {@link Probes#get(String)}.
+ */
+public final class Probe implements ProbeMBean {
+  private final String name;
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  /** clock of the first recorded stage, 0 before */
+  private volatile long firstNanos;
+
+  Probe(String name) {
+    this.name = name;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * @return start time to pass to {@link #end(long)}, 0 if probes are disabled
+   */
+  public long begin() {
+    return Probes.enabled ? System.nanoTime() : 0;
+  }
+
+  public void end(long t0) {
+    if (t0 != 0) {
+      long now = System.nanoTime();
+      if (firstNanos == 0) {
+        firstNanos = t0;
+      }
+      histogram.record(now - t0);
+    }
+  }
+
+  public LatencyHistogram histogram() {
+    return histogram;
+  }
+
+  @Override
+  public long getCount() {
+    return histogram.count();
+  }
+
+  /**
+   * @return stages per second since the first one
+   */
+  @Override
+  public double getPerSecond() {
+    long first = firstNanos;
+    long elapsed = System.nanoTime() - first;
+    return first == 0 || elapsed <= 0 ? 0 : histogram.count() * 1e9 / elapsed;
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return histogram.meanNanos() / 1e3;
+  }
+
+  @Override
+  public double getP50Micros() {
+    return histogram.percentileNanos(50) / 1e3;
+  }
+
+  @Override
+  public double getP99Micros() {
+    return histogram.percentileNanos(99) / 1e3;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return histogram.maxNanos() / 1e3;
+  }
+}
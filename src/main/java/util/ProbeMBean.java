@@ -0,0 +1,18 @@
+package util;
+
+/**
+ * JMX view of a {@link Probe}, durations in microseconds
+ */
+public interface ProbeMBean {
+  long getCount();
+
+  double getPerSecond();
+
+  double getMeanMicros();
+
+  double getP50Micros();
+
+  double getP99Micros();
+
+  double getMaxMicros();
+}
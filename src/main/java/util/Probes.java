@@ -0,0 +1,110 @@
+package util;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the {@link Probe}s of the process.
+ *
+ * Probes are disabled until {@link #enable()}, which also registers every probe as an MBean named
+ * {@code util:type=Probe,name=<stage>}, so they can be watched in jconsole while the pipeline runs.
+ */
+public final class Probes {
+  /** read by every {@link Probe#begin()} */
+  static volatile boolean enabled;
+
+  private static final Map<String, Probe> PROBES = new ConcurrentSkipListMap<>();
+  private static final Map<String, Boolean> REGISTERED = new ConcurrentHashMap<>();
+
+  private Probes() {}
+
+  /**
+   * @return probe of the stage, created on first use
+   */
+  public static Probe get(String name) {
+    Probe probe = PROBES.computeIfAbsent(name, Probe::new);
+    if (enabled) {
+      register(probe);
+    }
+    return probe;
+  }
+
+  public static void enable() {
+    enabled = true;
+    for (Probe probe : PROBES.values()) {
+      register(probe);
+    }
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Prints a table of the probes and writes them as JSON to the file when the JVM exits
+   */
+  public static void dumpAtExit(File file) {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      print();
+      try (Writer writer = new FileWriter(file)) {
+        writer.write(toJson());
+      } catch (IOException e) {
+        System.err.println("could not write " + file + ": " + e.getMessage());
+      }
+    }, "probes-dump"));
+  }
+
+  public static void print() {
+    System.out.println(String.format("%-20s %10s %10s %10s %10s %10s %10s",
+        "stage", "count", "per s", "mean us", "p50 us", "p99 us", "max us"));
+    for (Probe p : PROBES.values()) {
+      if (p.getCount() > 0) {
+        System.out.println(String.format("%-20s %10d %10.1f %10.1f %10.1f %10.1f %10.1f", p.name(),
+            p.getCount(), p.getPerSecond(), p.getMeanMicros(), p.getP50Micros(), p.getP99Micros(), p.getMaxMicros()));
+      }
+    }
+  }
+
+  /**
+   * @return probes that recorded anything, durations in nanoseconds
+   */
+  public static String toJson() {
+    StringBuilder json = new StringBuilder("{\n  \"probes\": [");
+    String separator = "\n";
+    for (Probe p : PROBES.values()) {
+      LatencyHistogram h = p.histogram();
+      if (h.count() == 0) {
+        continue;
+      }
+      json.append(separator).append(String.format(Locale.ROOT,
+          "    {\"stage\": \"%s\", \"count\": %d, \"per_second\": %.3f, \"total_ns\": %d, \"mean_ns\": %.1f, "
+              + "\"p50_ns\": %d, \"p90_ns\": %d, \"p99_ns\": %d, \"p999_ns\": %d, \"max_ns\": %d}",
+          p.name(), h.count(), p.getPerSecond(), h.sumNanos(), h.meanNanos(), h.percentileNanos(50),
+          h.percentileNanos(90), h.percentileNanos(99), h.percentileNanos(99.9), h.maxNanos()));
+      separator = ",\n";
+    }
+    return json.append("\n  ]\n}\n").toString();
+  }
+
+  private static void register(Probe probe) {
+    if (REGISTERED.putIfAbsent(probe.name(), Boolean.TRUE) != null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.registerMBean(probe, new ObjectName("util:type=Probe,name=" + ObjectName.quote(probe.name())));
+    } catch (JMException e) {
+      System.err.println("could not register probe " + probe.name() + ": " + e.getMessage());
+    }
+  }
+}
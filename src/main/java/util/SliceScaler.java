@@ -0,0 +1,172 @@
+package util;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.SizeTPointer;
+import org.bytedeco.javacpp.swscale;
+
+import java.util.concurrent.*;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Pixel format converter that splits the picture into horizontal bands and converts every band
+ * with its own {@code SwsContext} on its own thread.
+ *
+ * Every band context only sees the rows of its band, so bands are only used where that gives the
+ * same output as a single sws_scale call: the picture is not resized and no vertical filter reads
+ * across a band edge. A vertically subsampled destination averages chroma over neighbouring rows and
+ * is always converted in one call; a vertically subsampled source is only split without
+ * {@code SWS_ACCURATE_RND}, when swscale converts it row pair by row pair with the chroma row of
+ * the pair. Band heights are multiples of the vertical chroma subsampling, so chroma rows are never
+ * split between bands. The plane pointers of every band are allocated once, each conversion only
+ * rewrites the addresses in them.
+ */
+public final class SliceScaler implements AutoCloseable {
+  private static final int MAX_PLANES = 4;
+
+  private final int srcPlanes;
+  private final int dstPlanes;
+  private final int srcChromaShift;
+  private final int dstChromaShift;
+  private final int[] bandY;
+  private final int[] bandHeight;
+  private final swscale.SwsContext[] contexts;
+  private final PointerPointer<?>[] srcBands;
+  private final PointerPointer<?>[] dstBands;
+
+  /** plane addresses of srcBands and dstBands */
+  private final SizeTPointer[] srcBandAddresses;
+  private final SizeTPointer[] dstBandAddresses;
+  private final ExecutorService executor;
+  private final Future<?>[] futures;
+
+  /**
+   * @param slices number of bands, 0 for one per available core
+   */
+  public SliceScaler(int srcWidth, int srcHeight, int srcFormat,
+                     int dstWidth, int dstHeight, int dstFormat,
+                     int flags, int slices) {
+    this.srcPlanes = av_pix_fmt_count_planes(srcFormat);
+    this.dstPlanes = av_pix_fmt_count_planes(dstFormat);
+    this.srcChromaShift = av_pix_fmt_desc_get(srcFormat).log2_chroma_h();
+    this.dstChromaShift = av_pix_fmt_desc_get(dstFormat).log2_chroma_h();
+
+    int n = slices > 0 ? slices : Runtime.getRuntime().availableProcessors();
+    int align = 1 << Math.max(srcChromaShift, dstChromaShift);
+    if (srcWidth != dstWidth || srcHeight != dstHeight || dstChromaShift != 0
+        || (srcChromaShift != 0 && (flags & swscale.SWS_ACCURATE_RND) != 0)) {
+      n = 1;
+    }
+    n = Math.max(1, Math.min(n, srcHeight / align));
+
+    bandY = new int[n];
+    bandHeight = new int[n];
+    contexts = new swscale.SwsContext[n];
+    srcBands = new PointerPointer<?>[n];
+    dstBands = new PointerPointer<?>[n];
+    srcBandAddresses = new SizeTPointer[n];
+    dstBandAddresses = new SizeTPointer[n];
+    int rows = srcHeight / align;
+    for (int i = 0; i < n; i++) {
+      bandY[i] = rows * i / n * align;
+      int end = i == n - 1 ? srcHeight : rows * (i + 1) / n * align;
+      bandHeight[i] = end - bandY[i];
+
+      int srcH = n == 1 ? srcHeight : bandHeight[i];
+      int dstH = n == 1 ? dstHeight : bandHeight[i];
+      contexts[i] = swscale.sws_getContext(srcWidth, srcH, srcFormat, dstWidth, dstH, dstFormat,
+          flags, null, null, (DoublePointer) null);
+      if (contexts[i] == null || contexts[i].isNull()) {
+        close();
+        throw new RuntimeException("Could not init sws context!");
+      }
+      srcBands[i] = new PointerPointer<BytePointer>(MAX_PLANES);
+      dstBands[i] = new PointerPointer<BytePointer>(MAX_PLANES);
+      srcBandAddresses[i] = new SizeTPointer(srcBands[i]);
+      dstBandAddresses[i] = new SizeTPointer(dstBands[i]);
+    }
+
+    futures = new Future<?>[n];
+    executor = n == 1 ? null : Executors.newFixedThreadPool(n - 1, r -> {
+      Thread t = new Thread(r, "slice-scaler");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * @return number of bands
+   */
+  public int slices() {
+    return contexts.length;
+  }
+
+  public void scale(AVFrame src, AVFrame dst) {
+    scale(src.data(), src.linesize(), dst.data(), dst.linesize());
+  }
+
+  /**
+   * Converts the whole picture, returns when all bands are done
+   */
+  public void scale(PointerPointer<?> srcData, IntPointer srcLinesize, PointerPointer<?> dstData, IntPointer dstLinesize) {
+    int n = contexts.length;
+    if (n == 1) {
+      swscale.sws_scale(contexts[0], srcData, srcLinesize, 0, bandHeight[0], dstData, dstLinesize);
+      return;
+    }
+
+    for (int i = 0; i < n; i++) {
+      offsetPlanes(srcData, srcLinesize, srcPlanes, srcChromaShift, bandY[i], srcBands[i], srcBandAddresses[i]);
+      offsetPlanes(dstData, dstLinesize, dstPlanes, dstChromaShift, bandY[i], dstBands[i], dstBandAddresses[i]);
+    }
+    for (int i = 1; i < n; i++) {
+      int band = i;
+      futures[i] = executor.submit(() -> swscale.sws_scale(contexts[band],
+          srcBands[band], srcLinesize, 0, bandHeight[band], dstBands[band], dstLinesize));
+    }
+    swscale.sws_scale(contexts[0], srcBands[0], srcLinesize, 0, bandHeight[0], dstBands[0], dstLinesize);
+    try {
+      for (int i = 1; i < n; i++) {
+        futures[i].get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("sws_scale failed", e.getCause());
+    }
+  }
+
+  /**
+   * Points band planes to the first row of the band, chroma planes are offset by subsampled rows
+   */
+  private static void offsetPlanes(PointerPointer<?> data, IntPointer linesize, int planes, int chromaShift, int y,
+                                   PointerPointer<?> band, SizeTPointer bandAddresses) {
+    Pointer.memcpy(band, data, planes * bandAddresses.sizeof());
+    for (int p = 0; p < planes; p++) {
+      int rows = p == 1 || p == 2 ? y >> chromaShift : y;
+      bandAddresses.put(p, bandAddresses.get(p) + (long) rows * linesize.get(p));
+    }
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    for (int i = 0; i < contexts.length; i++) {
+      if (contexts[i] != null) {
+        swscale.sws_freeContext(contexts[i]);
+        contexts[i] = null;
+      }
+      if (srcBands[i] != null) {
+        srcBands[i].deallocate();
+        dstBands[i].deallocate();
+      }
+    }
+  }
+}
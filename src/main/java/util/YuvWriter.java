@@ -0,0 +1,199 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Writes decoded planar YUV frames to a Y4M or a raw planar file, plane by plane straight from the
+ * frame data pointers, without any conversion.
+ *
+ * Rows are copied without their linesize padding, a plane without padding in one piece. The output
+ * goes either to a direct buffer written to a {@link FileChannel} whenever a whole chunk is full, so
+ * every write is chunk-sized at a chunk-aligned offset, or to memory-mapped windows of the file,
+ * which is truncated to the written size when closed.
+ */
+public final class YuvWriter implements AutoCloseable {
+  private static final int PAGE = 4096;
+
+  private final FileChannel channel;
+  private final boolean mmap;
+  private final int chunkBytes;
+
+  private final int format;
+  private final int width;
+  private final int height;
+
+  /** bytes of a sample, 2 for formats deeper than 8 bits */
+  private final int sampleBytes;
+  private final int planes;
+  private final int chromaShiftW;
+  private final int chromaShiftH;
+
+  /** staging chunk or current mapped window */
+  private ByteBuffer out;
+
+  /** file offset of out */
+  private long offset;
+
+  /** FRAME header of every Y4M frame, null for raw output */
+  private final byte[] frameHeader;
+
+  private long frames;
+
+  /**
+   * @param y4m true for a Y4M file, false for raw planes
+   * @param mmap true to write through memory-mapped windows, false to write chunks to the channel
+   * @param chunkBytes size of the staging chunk or of the mapped window, rounded up to a page
+   * @param frameRate frame rate written to the Y4M header
+   * @param aspect sample aspect ratio written to the Y4M header, 0:0 if unknown
+   */
+  public YuvWriter(File file, boolean y4m, boolean mmap, int chunkBytes,
+                   int format, int width, int height, AVRational frameRate, AVRational aspect) throws IOException {
+    AVPixFmtDescriptor desc = av_pix_fmt_desc_get(format);
+    boolean planar = desc != null && ((desc.flags() & AV_PIX_FMT_FLAG_PLANAR) != 0 || desc.nb_components() == 1);
+    if (!planar || (desc.flags() & (AV_PIX_FMT_FLAG_RGB | AV_PIX_FMT_FLAG_BE | AV_PIX_FMT_FLAG_HWACCEL)) != 0) {
+      throw new IOException("not a planar little-endian yuv format: " + av_get_pix_fmt_name(format).getString());
+    }
+    this.format = format;
+    this.width = width;
+    this.height = height;
+    this.sampleBytes = desc.comp(0).depth() > 8 ? 2 : 1;
+    this.planes = Math.min(desc.nb_components(), 3);
+    this.chromaShiftW = desc.log2_chroma_w();
+    this.chromaShiftH = desc.log2_chroma_h();
+    this.mmap = mmap;
+    this.chunkBytes = (chunkBytes + PAGE - 1) / PAGE * PAGE;
+    String header = y4m ? String.format("YUV4MPEG2 W%d H%d F%d:%d Ip A%d:%d C%s\n", width, height,
+        frameRate.num(), frameRate.den(), aspect.num(), aspect.num() == 0 ? 0 : aspect.den(), colorspace(desc)) : null;
+
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    out = mmap ? channel.map(FileChannel.MapMode.READ_WRITE, 0, this.chunkBytes) : ByteBuffer.allocateDirect(this.chunkBytes);
+
+    if (y4m) {
+      frameHeader = "FRAME\n".getBytes(StandardCharsets.US_ASCII);
+      put(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+    } else {
+      frameHeader = null;
+    }
+  }
+
+  /**
+   * Appends the planes of the frame, which must have the format and size of the writer
+   */
+  public void write(AVFrame frame) throws IOException {
+    if (frame.format() != format || frame.width() != width || frame.height() != height) {
+      throw new IOException(String.format("frame %dx%d %d does not match the output %dx%d %d",
+          frame.width(), frame.height(), frame.format(), width, height, format));
+    }
+    if (frameHeader != null) {
+      put(ByteBuffer.wrap(frameHeader));
+    }
+    for (int p = 0; p < planes; p++) {
+      int rowBytes = sampleBytes * (p == 0 ? width : -((-width) >> chromaShiftW));
+      int rows = p == 0 ? height : -((-height) >> chromaShiftH);
+      int linesize = frame.linesize(p);
+      ByteBuffer plane = frame.data(p).capacity((long) linesize * (rows - 1) + rowBytes).asByteBuffer();
+      if (linesize == rowBytes) {
+        put(plane);
+      } else {
+        for (int y = 0; y < rows; y++) {
+          plane.limit(y * linesize + rowBytes).position(y * linesize);
+          put(plane);
+        }
+      }
+    }
+    ++frames;
+  }
+
+  public long frames() {
+    return frames;
+  }
+
+  /**
+   * @return number of bytes written
+   */
+  public long bytes() {
+    return offset + out.position();
+  }
+
+  /**
+   * Writes the last partial chunk or truncates the file after the last mapped byte
+   */
+  @Override
+  public void close() throws IOException {
+    long size = bytes();
+    if (mmap) {
+      channel.truncate(size);
+    } else {
+      out.flip();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+    }
+    channel.close();
+  }
+
+  private void put(ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      if (!out.hasRemaining()) {
+        nextChunk();
+      }
+      int n = Math.min(src.remaining(), out.remaining());
+      int limit = src.limit();
+      src.limit(src.position() + n);
+      out.put(src);
+      src.limit(limit);
+    }
+  }
+
+  private void nextChunk() throws IOException {
+    offset += out.position();
+    if (mmap) {
+      out = channel.map(FileChannel.MapMode.READ_WRITE, offset, chunkBytes);
+    } else {
+      out.flip();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      out.clear();
+    }
+  }
+
+  /**
+   * @return Y4M colorspace tag of the format
+   */
+  private static String colorspace(AVPixFmtDescriptor desc) throws IOException {
+    int depth = desc.comp(0).depth();
+    if (desc.nb_components() == 1) {
+      return depth > 8 ? "mono" + depth : "mono";
+    }
+    String subsampling;
+    switch (desc.log2_chroma_w() << 4 | desc.log2_chroma_h()) {
+      case 0x11:
+        subsampling = "420";
+        break;
+      case 0x10:
+        subsampling = "422";
+        break;
+      case 0x00:
+        subsampling = "444";
+        break;
+      case 0x20:
+        subsampling = "411";
+        break;
+      default:
+        throw new IOException("no Y4M colorspace for " + desc.name().getString());
+    }
+    if (depth > 8) {
+      return subsampling + "p" + depth;
+    }
+    return subsampling.equals("420") ? "420jpeg" : subsampling;
+  }
+}